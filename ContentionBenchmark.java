@@ -0,0 +1,177 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import p2p.BlockRequest;
+import p2p.PeerAdmin;
+
+public class ContentionBenchmark {
+    private static final String LOCAL_PEER_ID = "1";
+    private static final String FILE_NAME = "benchmark.bin";
+
+    private PeerAdmin peerAdmin;
+    private boolean isGlobalLock;
+
+    public static void main(String[] args) {
+        /*
+            This tool measures the lock contention of the block receive path of a
+            peer with many neighbors. It starts a real PeerAdmin without the file,
+            whose neighbors all have it but are never connected. Every neighbor
+            thread then makes the calls that a connection makes for each block:
+            it requests a block, cancels its duplicates, writes it, marks and
+            announces a completed piece, and checks whether it is still interested.
+
+            The global mode takes the PeerAdmin monitor around every call, as every
+            PeerAdmin method was synchronized before the state was split. The time
+            to receive the file, and the number of times and the time the neighbor
+            threads were blocked on a monitor are printed.
+
+            The peer reads Common.cfg and PeerInfo.cfg from the working directory,
+            so the tool writes its own and must be run from an empty directory.
+
+            Usage: java ContentionBenchmark [global|split] [neighbors] [pieces]
+         */
+        String mode = args.length > 0 ? args[0] : "split";
+        int neighborCount = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int pieceCount = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int pieceSize = 16384;
+        if (new File("Common.cfg").exists() || new File("PeerInfo.cfg").exists()) {
+            System.err.println("Run ContentionBenchmark from an empty directory, it writes Common.cfg and PeerInfo.cfg.");
+            System.exit(1);
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean.isThreadContentionMonitoringSupported()) {
+            threadBean.setThreadContentionMonitoringEnabled(true);
+        }
+        try {
+            writeConfiguration(neighborCount, pieceCount, pieceSize);
+            ContentionBenchmark benchmark = new ContentionBenchmark("global".equalsIgnoreCase(mode));
+            benchmark.run(neighborCount, threadBean);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        new File("peer_" + LOCAL_PEER_ID + "/" + FILE_NAME).delete();
+        System.exit(0);
+    }
+
+    private static void writeConfiguration(int neighborCount, int pieceCount, int pieceSize) throws IOException {
+        /*
+            The neighbors are listed after the peer, so that the peer does not
+            connect to them. The preferred neighbors are chosen rarely, to keep the
+            schedulers out of the measurement.
+         */
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+        try (PrintWriter writer = new PrintWriter(new FileWriter("Common.cfg"))) {
+            writer.println("NumberOfPreferredNeighbors 2");
+            writer.println("UnchokingInterval 60");
+            writer.println("OptimisticUnchokingInterval 60");
+            writer.println("FileName " + FILE_NAME);
+            writer.println("FileSize " + (long) pieceCount * pieceSize);
+            writer.println("PieceSize " + pieceSize);
+            writer.println("BlockSize " + pieceSize);
+        }
+        try (PrintWriter writer = new PrintWriter(new FileWriter("PeerInfo.cfg"))) {
+            writer.println(LOCAL_PEER_ID + " localhost " + port + " 0");
+            for (int neighbor = 1; neighbor <= neighborCount; neighbor++) {
+                writer.println((1 + neighbor) + " localhost " + (port + neighbor) + " 1");
+            }
+        }
+    }
+
+    private ContentionBenchmark(boolean isGlobalLock) {
+        this.peerAdmin = new PeerAdmin(LOCAL_PEER_ID);
+        this.isGlobalLock = isGlobalLock;
+    }
+
+    private void run(int neighborCount, ThreadMXBean threadBean) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch startLatch = new CountDownLatch(1);
+        AtomicInteger blockCount = new AtomicInteger();
+        AtomicLong blockedCount = new AtomicLong();
+        AtomicLong blockedMillis = new AtomicLong();
+        for (int neighbor = 1; neighbor <= neighborCount; neighbor++) {
+            String neighborPeerID = String.valueOf(1 + neighbor);
+            Thread thread = new Thread(() -> {
+                try {
+                    startLatch.await();
+                    blockCount.addAndGet(this.receiveBlocks(neighborPeerID));
+                    // Read by the thread itself, before its statistics are discarded
+                    ThreadInfo threadInfo = threadBean.getThreadInfo(Thread.currentThread().getId());
+                    blockedCount.addAndGet(threadInfo.getBlockedCount());
+                    blockedMillis.addAndGet(threadInfo.getBlockedTime());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        long startNanos = System.nanoTime();
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%s lock, %d neighbors, %d pieces: %d blocks in %.2f s (%.0f blocks/s), blocked %d times for %d ms%n",
+                this.isGlobalLock ? "global" : "split", neighborCount, this.peerAdmin.getPieceCount(), blockCount.get(),
+                seconds, blockCount.get() / seconds, blockedCount.get(), blockedMillis.get());
+    }
+
+    private int receiveBlocks(String neighborPeerID) {
+        /*
+            This method is the receive loop of one neighbor. Each step is the
+            PeerAdmin call that PeerUtils makes for a received block.
+         */
+        int blockCount = 0;
+        ByteBuffer blockData = ByteBuffer.allocate(this.peerAdmin.getPieceSize());
+        while (this.peerAdmin.getCompletedPieceCount() < this.peerAdmin.getPieceCount()) {
+            // fillRequestPipeline
+            BlockRequest request = this.call(() -> this.peerAdmin.checkForRequestedBlock(neighborPeerID));
+            if (request == null) {
+                Thread.yield();
+                continue;
+            }
+            // The piece message
+            this.call(() -> {
+                this.peerAdmin.cancelDuplicateRequests(neighborPeerID, request);
+                return null;
+            });
+            ByteBuffer block = blockData.duplicate().limit(request.getLength());
+            boolean isPieceCompleted = this.call(() -> this.peerAdmin.writeBlock(neighborPeerID, request.getPieceIndex(), request.getOffset(), block));
+            blockCount++;
+            if (isPieceCompleted) {
+                // markPieceCompleted
+                this.call(() -> {
+                    this.peerAdmin.updatePieceAvailability(this.peerAdmin.getPeerID(), request.getPieceIndex());
+                    this.peerAdmin.announcePieceAvailability(request.getPieceIndex());
+                    return null;
+                });
+            }
+            this.call(() -> this.peerAdmin.checkIfInterested(neighborPeerID));
+        }
+        return blockCount;
+    }
+
+    private <T> T call(Supplier<T> method) {
+        if (this.isGlobalLock) {
+            synchronized (this.peerAdmin) {
+                return method.get();
+            }
+        }
+        return method.get();
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.*;
+import java.util.*;
+
+import p2p.EventJournal;
+import p2p.LogFormatter;
+import p2p.PeerLogger;
+
+public class JournalReader {
+    private static final String[] EVENT_NAMES = {
+        "", "HANDSHAKE_RECEIVED", "CONNECTION_INITIATED", "CONNECTION_ESTABLISHED", "BITFIELD_SENT",
+        "BITFIELD_RECEIVED", "REQUEST_RECEIVED", "PIECE_SENT", "PREFERRED_NEIGHBORS_CHANGED",
+        "OPTIMISTIC_NEIGHBOR_CHANGED", "UNCHOKED", "CHOKED", "HAVE_RECEIVED", "INTERESTED_SENT",
+        "INTERESTED_RECEIVED", "NOT_INTERESTED_SENT", "NOT_INTERESTED_RECEIVED", "PIECE_DOWNLOADED",
+        "DOWNLOAD_COMPLETED"
+    };
+
+    public static void main(String[] args) {
+        /*
+            This tool reads the binary journal of a peer. In the log mode it prints
+            the same lines as peer_<id>.log, in the timeline mode it prints the
+            events of every neighbor in order, with the time since the peer started.
+
+            Usage: java JournalReader peer_<id>.journal [log|timeline]
+         */
+        if (args.length < 1) {
+            System.err.println("Usage: java JournalReader peer_<id>.journal [log|timeline]");
+            return;
+        }
+        String mode = args.length > 1 ? args[1] : "log";
+        try {
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]), 1 << 16));
+            if (inputStream.readInt() != EventJournal.MAGIC) {
+                System.err.println(args[0] + " is not an event journal.");
+                inputStream.close();
+                return;
+            }
+            String peerID = String.valueOf(inputStream.readInt());
+            long baseMillis = inputStream.readLong();
+            inputStream.readLong();
+            if ("timeline".equalsIgnoreCase(mode)) {
+                printTimelines(inputStream);
+            }
+            else {
+                printLog(inputStream, peerID, baseMillis);
+            }
+            inputStream.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void printLog(DataInputStream inputStream, String peerID, long baseMillis) throws IOException {
+        LogFormatter logFormatter = new LogFormatter(peerID);
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        StringBuilder line = new StringBuilder();
+        List<String> preferredNeighbors = new ArrayList<>();
+        long[] record = new long[5];
+        while (readRecord(inputStream, record)) {
+            int eventType = (int) record[1];
+            String neighborPeerID = String.valueOf(record[2]);
+            int pieceIndex = (int) record[3];
+            int pieceCount = (int) record[4];
+            Object detail = null;
+            if (eventType == PeerLogger.PREFERRED_NEIGHBORS_CHANGED) {
+                // The neighbors of the list are stored in consecutive records
+                if (pieceCount > 0) {
+                    preferredNeighbors.add(neighborPeerID);
+                }
+                if (preferredNeighbors.size() < pieceCount) {
+                    continue;
+                }
+                detail = preferredNeighbors.toString();
+                preferredNeighbors.clear();
+            }
+            else if (eventType == PeerLogger.REQUEST_RECEIVED || eventType == PeerLogger.PIECE_SENT) {
+                detail = String.valueOf(pieceIndex);
+            }
+            line.setLength(0);
+            logFormatter.format(baseMillis + record[0] / 1_000_000L, eventType, neighborPeerID, pieceIndex, pieceCount, detail, line);
+            writer.print(line);
+            writer.print(' ');
+            writer.println();
+        }
+        writer.flush();
+    }
+
+    private static void printTimelines(DataInputStream inputStream) throws IOException {
+        TreeMap<Long, List<long[]>> timelines = new TreeMap<>();
+        long[] record = new long[5];
+        while (readRecord(inputStream, record)) {
+            timelines.computeIfAbsent(record[2], neighbor -> new ArrayList<>()).add(record.clone());
+        }
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        for (Map.Entry<Long, List<long[]>> timeline : timelines.entrySet()) {
+            List<long[]> events = timeline.getValue();
+            events.sort(Comparator.comparingLong(event -> event[0]));
+            writer.println(timeline.getKey() < 0 ? "Peer" : "Neighbor " + timeline.getKey());
+            for (long[] event : events) {
+                int eventType = (int) event[1];
+                writer.printf("  %12.6f s  %s", event[0] / 1e9, eventType < EVENT_NAMES.length ? EVENT_NAMES[eventType] : String.valueOf(eventType));
+                if (eventType == PeerLogger.REQUEST_RECEIVED || eventType == PeerLogger.PIECE_SENT || eventType == PeerLogger.HAVE_RECEIVED) {
+                    writer.print(" piece " + event[3]);
+                }
+                else if (eventType == PeerLogger.PIECE_DOWNLOADED) {
+                    writer.print(" piece " + event[3] + ", " + event[4] + " pieces");
+                }
+                writer.println();
+            }
+        }
+        writer.flush();
+    }
+
+    private static boolean readRecord(DataInputStream inputStream, long[] record) throws IOException {
+        /*
+            This method reads the next record into the array as (nanoseconds, event
+            type, neighbor, piece index, number of pieces). Returns false at the end
+            of the journal, which is either the end of the file or an unwritten record.
+         */
+        try {
+            record[0] = inputStream.readLong();
+            record[1] = inputStream.readInt();
+            record[2] = inputStream.readInt();
+            record[3] = inputStream.readInt();
+            record[4] = inputStream.readInt();
+        }
+        catch (EOFException e) {
+            return false;
+        }
+        return record[1] != 0;
+    }
+}
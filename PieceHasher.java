@@ -0,0 +1,35 @@
+import java.io.*;
+
+import p2p.PieceHashes;
+
+public class PieceHasher {
+    public static void main(String[] args) {
+        /*
+            This tool writes the piece hash metadata file of a file, the same file
+            that the peer with the complete file generates at startup. It is reused
+            by the peer as long as the size and modification time of the file do not
+            change.
+
+            Usage: java PieceHasher <file> <pieceSize> [SHA-1|SHA-256] [metadata file]
+         */
+        if (args.length < 2) {
+            System.err.println("Usage: java PieceHasher <file> <pieceSize> [SHA-1|SHA-256] [metadata file]");
+            return;
+        }
+        File file = new File(args[0]);
+        int pieceSize = Integer.parseInt(args[1]);
+        String algorithm = args.length > 2 ? args[2] : "SHA-1";
+        File metadataFile = new File(args.length > 3 ? args[3] : file.getName() + ".hashes");
+        try {
+            long startNanos = System.nanoTime();
+            PieceHashes pieceHashes = PieceHashes.generate(file, algorithm, file.length(), pieceSize);
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            pieceHashes.write(metadataFile);
+            System.out.printf("Hashed %d pieces of %s with %s in %.2f s (%.1f MB/s), written to %s%n",
+                    pieceHashes.getPieceCount(), file, algorithm, seconds, file.length() / seconds / (1 << 20), metadataFile);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import p2p.FilePieceStore;
+import p2p.FileRegion;
+import p2p.MappedPieceStore;
+import p2p.PieceStore;
+
+public class PieceStoreCheck {
+    private static int failureCount = 0;
+
+    public static void main(String[] args) {
+        /*
+            This tool checks both piece stores on a sparse file larger than 4 GB. The
+            piece size is not a power of two, so that pieces straddle the 2 GB and
+            4 GB boundaries. Pieces and blocks are written above Integer.MAX_VALUE,
+            read back, and compared. The write and read throughput of the pieces at
+            the start of the file and above 4 GB are printed, and should be the same.
+
+            Usage: java PieceStoreCheck [file] [fileSize] [pieceSize]
+         */
+        File file = new File(args.length > 0 ? args[0] : "piecestore-check.bin");
+        long fileSize = args.length > 1 ? Long.parseLong(args[1]) : 5_000_000_123L;
+        int pieceSize = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_003;
+        try {
+            checkStore("FilePieceStore", file, fileSize, pieceSize, false);
+            checkStore("MappedPieceStore", file, fileSize, pieceSize, true);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            failureCount++;
+        }
+        System.out.println(failureCount == 0 ? "All checks passed" : failureCount + " checks failed");
+        System.exit(failureCount == 0 ? 0 : 1);
+    }
+
+    private static void checkStore(String name, File file, long fileSize, int pieceSize, boolean isMapped) throws IOException {
+        file.delete();
+        int pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+        int lastPiece = pieceCount - 1;
+        int pieceAbove2GB = (int) ((Integer.MAX_VALUE + 1L) / pieceSize);
+        int pieceAbove4GB = (int) ((1L << 32) / pieceSize);
+        System.out.printf("%s: %d pieces of %d bytes in %d bytes%n", name, pieceCount, pieceSize, fileSize);
+        PieceStore pieceStore = isMapped ? new MappedPieceStore(file, fileSize, pieceSize) : new FilePieceStore(file, fileSize, pieceSize);
+        try {
+            check(file.length() == fileSize, "file is extended to " + fileSize + " bytes");
+
+            // Whole pieces straddling and above the boundaries, and the short last piece
+            for (int pieceIndex : new int[] { pieceAbove2GB, pieceAbove4GB, lastPiece }) {
+                byte[] data = pieceData(pieceIndex, getPieceLength(pieceIndex, fileSize, pieceSize));
+                pieceStore.writePiece(pieceIndex, data);
+                check(Arrays.equals(data, pieceStore.readPiece(pieceIndex)), "piece " + pieceIndex + " reads back");
+                check(Arrays.equals(data, readRegion(pieceStore, pieceIndex, 0, data.length)), "piece " + pieceIndex + " is sent from its file region");
+            }
+
+            // A block in the middle of a piece above 2 GB
+            int blockPiece = pieceAbove2GB + 1;
+            byte[] block = pieceData(-blockPiece, 16384);
+            pieceStore.writeBlock(blockPiece, 12345, ByteBuffer.wrap(block));
+            check(Arrays.equals(block, readRegion(pieceStore, blockPiece, 12345, block.length)), "block of piece " + blockPiece + " reads back");
+            byte[] blockPieceData = pieceStore.readPiece(blockPiece);
+            check(blockPieceData[12344] == 0 && blockPieceData[12345 + block.length] == 0, "bytes around the block stay unwritten");
+
+            // Consecutive pieces written at once across the 4 GB boundary
+            int firstPiece = pieceAbove4GB - 2;
+            ByteBuffer run = ByteBuffer.allocate(3 * pieceSize);
+            for (int pieceIndex = firstPiece; pieceIndex < firstPiece + 3; pieceIndex++) {
+                run.put(pieceData(pieceIndex, pieceSize));
+            }
+            pieceStore.writePieces(firstPiece, run.flip());
+            for (int pieceIndex = firstPiece; pieceIndex < firstPiece + 3; pieceIndex++) {
+                check(Arrays.equals(pieceData(pieceIndex, pieceSize), pieceStore.readPiece(pieceIndex)), "piece " + pieceIndex + " of the run reads back");
+            }
+
+            check(isZero(pieceStore.readPiece(pieceAbove2GB + 10)), "an unwritten piece above 2 GB reads as zeros");
+
+            measureThroughput(pieceStore, "below 2 GB", 0, pieceSize);
+            measureThroughput(pieceStore, "above 4 GB", pieceAbove4GB + 10, pieceSize);
+        }
+        finally {
+            pieceStore.close();
+            file.delete();
+        }
+    }
+
+    private static void measureThroughput(PieceStore pieceStore, String name, int firstPiece, int pieceSize) throws IOException {
+        int pieceCount = 64;
+        byte[] data = pieceData(firstPiece, pieceSize);
+        long startNanos = System.nanoTime();
+        for (int pieceIndex = firstPiece; pieceIndex < firstPiece + pieceCount; pieceIndex++) {
+            pieceStore.writePiece(pieceIndex, data);
+        }
+        pieceStore.force();
+        long writeNanos = System.nanoTime() - startNanos;
+        startNanos = System.nanoTime();
+        for (int pieceIndex = firstPiece; pieceIndex < firstPiece + pieceCount; pieceIndex++) {
+            pieceStore.readPiece(pieceIndex);
+        }
+        long readNanos = System.nanoTime() - startNanos;
+        double megabytes = (double) pieceCount * pieceSize / (1 << 20);
+        System.out.printf("  %s: write %.0f MB/s, read %.0f MB/s%n", name, megabytes * 1e9 / writeNanos, megabytes * 1e9 / readNanos);
+    }
+
+    private static byte[] readRegion(PieceStore pieceStore, int pieceIndex, int offset, int length) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(length);
+        FileRegion region = pieceStore.getBlockRegion(pieceIndex, offset, length);
+        while (region.hasRemaining()) {
+            region.transferTo(Channels.newChannel(outputStream));
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] pieceData(int seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static int getPieceLength(int pieceIndex, long fileSize, int pieceSize) {
+        return (int) Math.min(pieceSize, fileSize - (long) pieceIndex * pieceSize);
+    }
+
+    private static boolean isZero(byte[] data) {
+        for (byte value : data) {
+            if (value != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void check(boolean isPassed, String description) {
+        System.out.println("  " + (isPassed ? "ok     " : "FAILED ") + description);
+        if (!isPassed) {
+            failureCount++;
+        }
+    }
+}
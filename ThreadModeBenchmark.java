@@ -0,0 +1,134 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import p2p.FrameReader;
+import p2p.MessageCodec;
+import p2p.OutboundQueue;
+import p2p.PeerThreadFactory;
+
+public class ThreadModeBenchmark {
+    public static void main(String[] args) {
+        /*
+            This tool compares the platform and virtual thread modes of a peer. It
+            opens the given number of loopback connections and runs them the way
+            PeerUtils runs a blocking connection: a reader thread parked in a
+            FrameReader and a writer thread parked in an OutboundQueue, plus the
+            three scheduler executors of a peer. It reports the platform threads,
+            the heap and the resident memory while all the threads are parked, and
+            the time to deliver one message to every reader.
+
+            Usage: java ThreadModeBenchmark [platform|virtual] [connections]
+         */
+        String threadMode = args.length > 0 ? args[0] : "platform";
+        int connectionCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        PeerThreadFactory threadFactory = new PeerThreadFactory(threadMode);
+        List<SocketChannel> channels = new ArrayList<>();
+        List<OutboundQueue> outboundQueues = new ArrayList<>();
+        List<ScheduledExecutorService> schedulers = new ArrayList<>();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int baseThreadCount = ManagementFactory.getThreadMXBean().getThreadCount();
+            for (int index = 0; index < 3; index++) {
+                ScheduledExecutorService scheduler = threadFactory.newScheduledExecutor();
+                scheduler.scheduleAtFixedRate(() -> { }, 1, 1, TimeUnit.SECONDS);
+                schedulers.add(scheduler);
+            }
+
+            CountDownLatch receivedLatch = new CountDownLatch(connectionCount);
+            long startNanos = System.nanoTime();
+            for (int index = 0; index < connectionCount; index++) {
+                SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+                SocketChannel acceptedChannel = serverChannel.accept();
+                channels.add(clientChannel);
+                channels.add(acceptedChannel);
+                FrameReader frameReader = new FrameReader(acceptedChannel.socket().getInputStream(), 1 << 16);
+                threadFactory.newThread(() -> {
+                    try {
+                        frameReader.readFrame();
+                        receivedLatch.countDown();
+                    }
+                    catch (IOException e) {
+                        // The connection is closed when the benchmark ends
+                    }
+                }).start();
+                OutboundQueue outboundQueue = new OutboundQueue(1 << 20, 1 << 19, null, null);
+                outboundQueues.add(outboundQueue);
+                threadFactory.newThread(() -> {
+                    try {
+                        outboundQueue.runWriter(clientChannel);
+                    }
+                    catch (IOException e) {
+                        // The connection is closed when the benchmark ends
+                    }
+                }).start();
+            }
+            double startSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+            // Let every thread park before measuring
+            Thread.sleep(1000);
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            long heapBytes = runtime.totalMemory() - runtime.freeMemory();
+            int threadCount = ManagementFactory.getThreadMXBean().getThreadCount() - baseThreadCount;
+
+            long deliverNanos = System.nanoTime();
+            for (OutboundQueue outboundQueue : outboundQueues) {
+                outboundQueue.add(MessageCodec.encodeHeader('4', 4), ByteBuffer.allocate(4));
+            }
+            boolean isDelivered = receivedLatch.await(60, TimeUnit.SECONDS);
+            double deliverMillis = (System.nanoTime() - deliverNanos) / 1e6;
+
+            System.out.printf("mode %s (%s), %d connections%n", threadMode, threadFactory.isVirtual() ? "virtual" : "platform", connectionCount);
+            System.out.printf("started in %.2f s%n", startSeconds);
+            System.out.printf("platform threads %d, heap %.1f MB, resident %s%n", threadCount, heapBytes / 1048576.0, getResidentMemory());
+            System.out.printf("one message to every reader in %.1f ms%s%n", deliverMillis, isDelivered ? "" : " (timed out)");
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        for (OutboundQueue outboundQueue : outboundQueues) {
+            outboundQueue.close();
+        }
+        for (SocketChannel channel : channels) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (ScheduledExecutorService scheduler : schedulers) {
+            scheduler.shutdownNow();
+        }
+        System.exit(0);
+    }
+
+    private static String getResidentMemory() {
+        /*
+            The resident memory of the process is only available on Linux.
+         */
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return String.format("%.1f MB", Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024.0);
+                }
+            }
+        }
+        catch (Exception e) {
+            // Not available on this platform
+        }
+        return "n/a";
+    }
+}
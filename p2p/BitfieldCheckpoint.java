@@ -0,0 +1,114 @@
+package p2p;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class BitfieldCheckpoint implements Runnable {
+    public static final int MAGIC = 0x42464350;
+
+    private PeerAdmin peerAdmin;
+    private File checkpointFile;
+    private int interval;
+    private ScheduledExecutorService scheduler = null;
+    private int writtenPieceCount = -1;
+    private volatile boolean isClosed = false;
+
+    BitfieldCheckpoint(PeerAdmin padmin, File checkpointFile, int interval) {
+        /*
+            This is the constructor for BitfieldCheckpoint class. The bitfield of the
+            peer is written to a small file next to the downloaded file, every
+            interval seconds and when the peer terminates, so that a restarted peer
+            only downloads the pieces it is still missing.
+         */
+        this.peerAdmin = padmin;
+        this.checkpointFile = checkpointFile;
+        this.interval = interval;
+    }
+
+    public void initializeScheduler() {
+        if (this.interval > 0) {
+            this.scheduler = this.peerAdmin.getThreadFactory().newScheduledExecutor();
+            this.scheduler.scheduleAtFixedRate(this, this.interval, this.interval, TimeUnit.SECONDS);
+        }
+    }
+
+    public BitSet load() {
+        /*
+            This method reads the bitfield of the last checkpoint. A checkpoint that
+            is missing, unreadable or written for another file size or piece size
+            is ignored.
+
+            Returns the pieces recorded by the checkpoint.
+         */
+        BitSet availability = new BitSet(this.peerAdmin.getPieceCount());
+        if (!this.checkpointFile.exists()) {
+            return availability;
+        }
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(this.checkpointFile)))) {
+            if (inputStream.readInt() != MAGIC || inputStream.readLong() != this.peerAdmin.getFileSize()
+                    || inputStream.readInt() != this.peerAdmin.getPieceSize()) {
+                return availability;
+            }
+            byte[] bitfield = new byte[inputStream.readInt()];
+            inputStream.readFully(bitfield);
+            availability.or(BitSet.valueOf(bitfield));
+            availability.clear(this.peerAdmin.getPieceCount(), Math.max(this.peerAdmin.getPieceCount(), availability.length()));
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            availability.clear();
+        }
+        return availability;
+    }
+
+    public void delete() {
+        this.checkpointFile.delete();
+    }
+
+    public synchronized void run() {
+        /*
+            This method writes the checkpoint if pieces were added since the last one.
+            The piece store is forced first and only the pieces on disk are
+            recorded, so that the checkpoint never records a piece whose data is not
+            durable. The file is written to a temporary file and renamed, so that a
+            crash leaves either the old or the new checkpoint.
+         */
+        if (this.isClosed || this.peerAdmin.getCompletedPieceCount() == this.writtenPieceCount) {
+            return;
+        }
+        try {
+            BitSet pieces = this.peerAdmin.forcePieces();
+            int pieceCount = pieces.cardinality();
+            byte[] bitfield = pieces.toByteArray();
+            File temporaryFile = new File(this.checkpointFile.getPath() + ".tmp");
+            try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+                outputStream.writeInt(MAGIC);
+                outputStream.writeLong(this.peerAdmin.getFileSize());
+                outputStream.writeInt(this.peerAdmin.getPieceSize());
+                outputStream.writeInt(bitfield.length);
+                outputStream.write(bitfield);
+            }
+            Files.move(temporaryFile.toPath(), this.checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.writtenPieceCount = pieceCount;
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void destroyScheduler() {
+        /*
+            This method writes the final checkpoint and stops the scheduler. It must
+            be called before the piece store is closed.
+         */
+        if (this.scheduler != null) {
+            this.scheduler.shutdown();
+        }
+        this.run();
+        this.isClosed = true;
+    }
+}
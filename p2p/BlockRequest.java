@@ -0,0 +1,41 @@
+package p2p;
+
+public class BlockRequest {
+    private int pieceIndex;
+    private int offset;
+    private int length;
+
+    public BlockRequest(int pieceIndex, int offset, int length) {
+        /*
+            This is the constructor for BlockRequest class. A block is the part of a
+            piece that is requested and sent in a single request or piece message.
+         */
+        this.pieceIndex = pieceIndex;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int getPieceIndex() {
+        return this.pieceIndex;
+    }
+
+    public int getOffset() {
+        return this.offset;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof BlockRequest)) {
+            return false;
+        }
+        BlockRequest request = (BlockRequest) other;
+        return this.pieceIndex == request.pieceIndex && this.offset == request.offset;
+    }
+
+    public int hashCode() {
+        return 31 * this.pieceIndex + this.offset;
+    }
+}
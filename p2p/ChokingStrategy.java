@@ -0,0 +1,14 @@
+package p2p;
+
+import java.util.List;
+
+public interface ChokingStrategy {
+    /*
+        A ChokingStrategy chooses the preferred neighbors of the peer at every
+        unchoking interval. The rate meters of the connections are sampled
+        before it is called, and every other neighbor is choked afterwards,
+        except the optimistically unchoked one.
+     */
+
+    List<String> selectPreferredNeighbors(PeerAdmin peerAdmin, List<String> interestedPeers, int count);
+}
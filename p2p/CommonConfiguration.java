@@ -8,8 +8,35 @@ public class CommonConfiguration {
     public int unchokingInterval;
     public int optimisticUnchokingInterval;
     public String fileName;
-    public int fileSize;
+    public long fileSize;
     public int pieceSize;
+    public String transport = "blocking";
+    public String threadMode = "platform";
+    public String pieceStore = "file";
+    public int requestPipelineSize = 16;
+    public int blockSize = 16384;
+    public String logMode = "sync";
+    public int logBufferSize = 8192;
+    public String eventJournal = "off";
+    public int haveBatchInterval = 10;
+    public int haveBatchSize = 32;
+    public long outboundHighWatermark = 1048576;
+    public long outboundLowWatermark = 262144;
+    public String chokingStrategy = "default";
+    public int endgameThreshold = 4;
+    public String pieceVerification = "off";
+    public String pieceHashAlgorithm = "SHA-1";
+    public String pieceHashFile = null;
+    public int verifierThreads = 2;
+    public int maxPieceFailures = 3;
+    public String resume = "off";
+    public int checkpointInterval = 5;
+    public String resumeVerification = "on";
+    public String writeBack = "off";
+    public String forcePolicy = "never";
+    public int forceInterval = 1000;
+    public int pieceCacheSize = 0;
+    public String pieceCacheMemory = "heap";
 
     public void unpackCommonConfiguration() {
         /*
@@ -36,11 +63,92 @@ public class CommonConfiguration {
                         this.fileName = configuration[1];
                         break;
                     case "FileSize":
-                        this.fileSize = Integer.parseInt(configuration[1]);
+                        this.fileSize = Long.parseLong(configuration[1]);
                         break;
                     case "PieceSize":
                         this.pieceSize = Integer.parseInt(configuration[1]);
                         break;
+                    case "Transport":
+                        this.transport = configuration[1];
+                        break;
+                    case "ThreadMode":
+                        this.threadMode = configuration[1];
+                        break;
+                    case "PieceStore":
+                        this.pieceStore = configuration[1];
+                        break;
+                    case "RequestPipelineSize":
+                        this.requestPipelineSize = Integer.parseInt(configuration[1]);
+                        break;
+                    case "BlockSize":
+                        this.blockSize = Integer.parseInt(configuration[1]);
+                        break;
+                    case "LogMode":
+                        this.logMode = configuration[1];
+                        break;
+                    case "LogBufferSize":
+                        this.logBufferSize = Integer.parseInt(configuration[1]);
+                        break;
+                    case "EventJournal":
+                        this.eventJournal = configuration[1];
+                        break;
+                    case "HaveBatchInterval":
+                        this.haveBatchInterval = Integer.parseInt(configuration[1]);
+                        break;
+                    case "HaveBatchSize":
+                        this.haveBatchSize = Integer.parseInt(configuration[1]);
+                        break;
+                    case "OutboundHighWatermark":
+                        this.outboundHighWatermark = Long.parseLong(configuration[1]);
+                        break;
+                    case "OutboundLowWatermark":
+                        this.outboundLowWatermark = Long.parseLong(configuration[1]);
+                        break;
+                    case "ChokingStrategy":
+                        this.chokingStrategy = configuration[1];
+                        break;
+                    case "EndgameThreshold":
+                        this.endgameThreshold = Integer.parseInt(configuration[1]);
+                        break;
+                    case "PieceVerification":
+                        this.pieceVerification = configuration[1];
+                        break;
+                    case "PieceHashAlgorithm":
+                        this.pieceHashAlgorithm = configuration[1];
+                        break;
+                    case "PieceHashFile":
+                        this.pieceHashFile = configuration[1];
+                        break;
+                    case "VerifierThreads":
+                        this.verifierThreads = Integer.parseInt(configuration[1]);
+                        break;
+                    case "MaxPieceFailures":
+                        this.maxPieceFailures = Integer.parseInt(configuration[1]);
+                        break;
+                    case "Resume":
+                        this.resume = configuration[1];
+                        break;
+                    case "CheckpointInterval":
+                        this.checkpointInterval = Integer.parseInt(configuration[1]);
+                        break;
+                    case "ResumeVerification":
+                        this.resumeVerification = configuration[1];
+                        break;
+                    case "WriteBack":
+                        this.writeBack = configuration[1];
+                        break;
+                    case "ForcePolicy":
+                        this.forcePolicy = configuration[1];
+                        break;
+                    case "ForceInterval":
+                        this.forceInterval = Integer.parseInt(configuration[1]);
+                        break;
+                    case "PieceCacheSize":
+                        this.pieceCacheSize = Integer.parseInt(configuration[1]);
+                        break;
+                    case "PieceCacheMemory":
+                        this.pieceCacheMemory = configuration[1];
+                        break;
                     default:
                         break;
                 }
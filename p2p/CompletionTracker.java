@@ -0,0 +1,66 @@
+package p2p;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CompletionTracker {
+    private int pieceCount;
+    private int peerCount;
+    private ConcurrentHashMap<String, AtomicInteger> availablePieceCounts;
+    private AtomicInteger completedPeerCount;
+
+    public CompletionTracker(Collection<String> peerIDs, int pieceCount) {
+        /*
+            This is the constructor for CompletionTracker class. It keeps the number
+            of pieces of every peer and the number of peers that have the complete
+            file, so that the end of the swarm is detected without scanning the
+            bitfields.
+         */
+        this.pieceCount = pieceCount;
+        this.peerCount = peerIDs.size();
+        this.availablePieceCounts = new ConcurrentHashMap<>();
+        for (String peerID : peerIDs) {
+            this.availablePieceCounts.put(peerID, new AtomicInteger());
+        }
+        this.completedPeerCount = new AtomicInteger();
+    }
+
+    public void pieceAdded(String peerID) {
+        /*
+            This method counts a new piece of the peer. It must be called once for
+            every piece that is added to the bitfield of the peer.
+         */
+        AtomicInteger availablePieceCount = this.availablePieceCounts.get(peerID);
+        if (availablePieceCount != null && availablePieceCount.incrementAndGet() == this.pieceCount) {
+            this.completedPeerCount.incrementAndGet();
+        }
+    }
+
+    public void setAvailablePieceCount(String peerID, int count) {
+        /*
+            This method replaces the number of pieces of the peer, when a whole
+            bitfield is received.
+         */
+        AtomicInteger availablePieceCount = this.availablePieceCounts.get(peerID);
+        if (availablePieceCount == null) {
+            return;
+        }
+        int previousCount = availablePieceCount.getAndSet(count);
+        if (previousCount != this.pieceCount && count == this.pieceCount) {
+            this.completedPeerCount.incrementAndGet();
+        }
+        else if (previousCount == this.pieceCount && count != this.pieceCount) {
+            this.completedPeerCount.decrementAndGet();
+        }
+    }
+
+    public int getAvailablePieceCount(String peerID) {
+        AtomicInteger availablePieceCount = this.availablePieceCounts.get(peerID);
+        return availablePieceCount == null ? 0 : availablePieceCount.get();
+    }
+
+    public boolean isCompleted() {
+        return this.completedPeerCount.get() == this.peerCount;
+    }
+}
@@ -0,0 +1,56 @@
+package p2p;
+
+import java.util.*;
+
+public class DefaultChokingStrategy implements ChokingStrategy {
+    private Random rand = new Random();
+
+    public List<String> selectPreferredNeighbors(PeerAdmin peerAdmin, List<String> interestedPeers, int count) {
+        /*
+            This method chooses random interested neighbors once the peer has the
+            complete file, and the neighbors with the highest download rates
+            while it is still downloading.
+         */
+        if (peerAdmin.getCompletedPieceCount() == peerAdmin.getPieceCount()) {
+            return this.selectAsSeed(peerAdmin, interestedPeers, count);
+        }
+        return this.selectAsLeecher(peerAdmin, interestedPeers, count);
+    }
+
+    protected List<String> selectAsSeed(PeerAdmin peerAdmin, List<String> interestedPeers, int count) {
+        List<String> candidates = new ArrayList<>(interestedPeers);
+        Collections.shuffle(candidates, this.rand);
+        return candidates.subList(0, Math.min(count, candidates.size()));
+    }
+
+    protected List<String> selectAsLeecher(PeerAdmin peerAdmin, List<String> interestedPeers, int count) {
+        return selectHighestScores(selectInterested(peerAdmin.getDownloadRatesOfPeers(), interestedPeers), count);
+    }
+
+    protected static Map<String, Double> selectInterested(Map<String, Double> rates, List<String> interestedPeers) {
+        /*
+            This method keeps the rates of the interested neighbors that are still
+            connected.
+         */
+        Map<String, Double> interestedRates = new HashMap<>();
+        for (String peerID : interestedPeers) {
+            Double rate = rates.get(peerID);
+            if (rate != null) {
+                interestedRates.put(peerID, rate);
+            }
+        }
+        return interestedRates;
+    }
+
+    protected static List<String> selectHighestScores(Map<String, Double> scores, int count) {
+        /*
+            This method returns up to count neighbors in descending order of their
+            scores. Neighbors with equal scores are taken in random order, so that
+            idle neighbors get a chance to be unchoked.
+         */
+        List<String> candidates = new ArrayList<>(scores.keySet());
+        Collections.shuffle(candidates);
+        candidates.sort(Comparator.comparingDouble((String peerID) -> scores.get(peerID)).reversed());
+        return candidates.subList(0, Math.min(count, candidates.size()));
+    }
+}
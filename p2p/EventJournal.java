@@ -0,0 +1,150 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class EventJournal {
+    public static final int MAGIC = 0x50325031;
+    public static final int HEADER_SIZE = 24;
+    public static final int RECORD_SIZE = 24;
+    public static final long SEGMENT_SIZE = RECORD_SIZE * (1L << 18);
+    private static final int MAX_SEGMENTS = 4096;
+
+    private FileChannel fileChannel;
+    private AtomicReferenceArray<MappedByteBuffer> segments;
+    private AtomicLong nextPosition;
+    private AtomicLong droppedEvents;
+    private long baseNanos;
+    private volatile boolean isClosed;
+
+    public EventJournal(File file, String peerID) throws IOException {
+        /*
+            This is the constructor for EventJournal class. The journal is a binary
+            companion of the peer log. It is a memory-mapped file that starts with a
+            header (magic, peer id, epoch millis and nanoTime at the start) followed by
+            fixed size records:
+
+                long  nanoseconds since the start
+                int   event type, one of the PeerLogger event types
+                int   neighbor peer id, or -1
+                int   piece index
+                int   number of pieces, or the position in a list of neighbors
+
+            A record with event type 0 has not been written, so a reader stops there.
+            The file is mapped in segments that are added as the journal grows.
+         */
+        this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+        this.nextPosition = new AtomicLong(HEADER_SIZE);
+        this.droppedEvents = new AtomicLong();
+        this.baseNanos = System.nanoTime();
+        MappedByteBuffer header = this.getSegment(0);
+        header.putInt(0, MAGIC);
+        header.putInt(4, parseNumber(peerID));
+        header.putLong(8, System.currentTimeMillis());
+        header.putLong(16, this.baseNanos);
+    }
+
+    public void append(int eventType, String neighborPeerID, int pieceIndex, int pieceCount) {
+        /*
+            This method claims the next record with an atomic add and writes it with
+            absolute puts, so appending takes no lock. The event type is written last
+            because it marks the record as complete.
+         */
+        long timestamp = System.nanoTime() - this.baseNanos;
+        if (this.isClosed) {
+            return;
+        }
+        long position = this.nextPosition.getAndAdd(RECORD_SIZE);
+        MappedByteBuffer segment = this.getSegment((int) (position / SEGMENT_SIZE));
+        if (segment == null) {
+            this.droppedEvents.incrementAndGet();
+            return;
+        }
+        int offset = (int) (position % SEGMENT_SIZE);
+        segment.putLong(offset, timestamp);
+        segment.putInt(offset + 12, parseNumber(neighborPeerID));
+        segment.putInt(offset + 16, pieceIndex);
+        segment.putInt(offset + 20, pieceCount);
+        segment.putInt(offset + 8, eventType);
+    }
+
+    public void appendNeighbors(int eventType, List<String> neighborPeerIDs) {
+        /*
+            This method writes a list of neighbors as one record per neighbor, with
+            the position in the list as the piece index and the size of the list as
+            the number of pieces. An empty list is written as a single record.
+         */
+        if (neighborPeerIDs.isEmpty()) {
+            this.append(eventType, null, 0, 0);
+        }
+        for (int position = 0; position < neighborPeerIDs.size(); position++) {
+            this.append(eventType, neighborPeerIDs.get(position), position, neighborPeerIDs.size());
+        }
+    }
+
+    private MappedByteBuffer getSegment(int segmentIndex) {
+        if (segmentIndex >= MAX_SEGMENTS) {
+            return null;
+        }
+        MappedByteBuffer segment = this.segments.get(segmentIndex);
+        if (segment != null) {
+            return segment;
+        }
+        synchronized (this) {
+            segment = this.segments.get(segmentIndex);
+            if (segment == null && !this.isClosed) {
+                try {
+                    segment = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, segmentIndex * SEGMENT_SIZE, SEGMENT_SIZE);
+                    this.segments.set(segmentIndex, segment);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            return segment;
+        }
+    }
+
+    public long getDroppedEvents() {
+        return this.droppedEvents.get();
+    }
+
+    public synchronized void close() {
+        /*
+            This method stops the journal and closes the file. The mapped segments
+            stay valid until they are garbage collected, so an append that is still
+            in progress does not fail. The file is not truncated for the same reason.
+         */
+        try {
+            this.isClosed = true;
+            this.fileChannel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static int parseNumber(String value) {
+        /*
+            This method returns the numeric value of a peer id or piece index, or -1
+            if the value is missing or not a number.
+         */
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class FilePieceStore implements PieceStore {
+    protected FileChannel fileChannel;
+    protected long fileSize;
+    protected int pieceSize;
+    protected int pieceCount;
+
+    public FilePieceStore(File file, long fileSize, int pieceSize) throws IOException {
+        /*
+            This is the constructor for FilePieceStore class. Pieces are read and
+            written with positional FileChannel operations, which do not share a file
+            pointer and can run concurrently for different pieces.
+         */
+        this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+
+        // Extend a new file to its full size, the file stays sparse until written
+        if (this.fileChannel.size() < fileSize) {
+            this.fileChannel.write(ByteBuffer.wrap(new byte[1]), fileSize - 1);
+        }
+    }
+
+    public void writePiece(int pieceIndex, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = this.getPiecePosition(pieceIndex);
+        while (buffer.hasRemaining()) {
+            position += this.fileChannel.write(buffer, position);
+        }
+    }
+
+    public byte[] readPiece(int pieceIndex) throws IOException {
+        byte[] data = new byte[this.getPieceLength(pieceIndex)];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = this.getPiecePosition(pieceIndex);
+        while (buffer.hasRemaining()) {
+            int count = this.fileChannel.read(buffer, position);
+            if (count < 0) {
+                break;
+            }
+            position += count;
+        }
+        return data;
+    }
+
+    public void writeBlock(int pieceIndex, int offset, ByteBuffer data) throws IOException {
+        ByteBuffer buffer = data.duplicate();
+        long position = this.getPiecePosition(pieceIndex) + offset;
+        while (buffer.hasRemaining()) {
+            position += this.fileChannel.write(buffer, position);
+        }
+    }
+
+    public void writePieces(int firstPieceIndex, ByteBuffer data) throws IOException {
+        /*
+            This method writes consecutive pieces, starting at the given piece, with
+            a single positional write.
+         */
+        this.writeBlock(firstPieceIndex, 0, data);
+    }
+
+    public FileRegion getBlockRegion(int pieceIndex, int offset, int length) {
+        return new FileRegion(this.fileChannel, this.getPiecePosition(pieceIndex) + offset, length);
+    }
+
+    public void force() throws IOException {
+        this.fileChannel.force(false);
+    }
+
+    public void close() throws IOException {
+        this.fileChannel.close();
+    }
+
+    protected long getPiecePosition(int pieceIndex) {
+        return (long) this.pieceSize * pieceIndex;
+    }
+
+    protected int getPieceLength(int pieceIndex) {
+        /*
+            If the piece is the last piece, it can have the full piece size
+            or the remaining bytes of the file.
+        */
+        if (pieceIndex == this.pieceCount - 1) {
+            return (int) (this.fileSize - this.getPiecePosition(pieceIndex));
+        }
+        return this.pieceSize;
+    }
+}
@@ -0,0 +1,54 @@
+package p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class FileRegion {
+    private FileChannel fileChannel;
+    private ByteBuffer buffer;
+    private long position;
+    private long remaining;
+
+    public FileRegion(FileChannel fileChannel, long position, long count) {
+        /*
+            This is the constructor for FileRegion class. A region is a range of the
+            shared file that is sent to a socket with FileChannel.transferTo, so the
+            bytes are copied by the kernel without passing through the heap.
+         */
+        this.fileChannel = fileChannel;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    public FileRegion(ByteBuffer buffer) {
+        /*
+            A region can also be a block that is already in memory, such as a block
+            of the piece cache. It is sent like a range of the file, so that the
+            writer accounts for it the same way.
+         */
+        this.buffer = buffer;
+        this.remaining = buffer.remaining();
+    }
+
+    public long transferTo(WritableByteChannel target) throws IOException {
+        /*
+            This method transfers as many bytes as the target accepts and advances the
+            region. A non-blocking target may accept only a part of the region.
+         */
+        long transferred = this.buffer != null ? target.write(this.buffer)
+                : this.fileChannel.transferTo(this.position, this.remaining, target);
+        this.position += transferred;
+        this.remaining -= transferred;
+        return transferred;
+    }
+
+    public boolean hasRemaining() {
+        return this.remaining > 0;
+    }
+
+    public long remaining() {
+        return this.remaining;
+    }
+}
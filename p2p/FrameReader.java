@@ -0,0 +1,91 @@
+package p2p;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FrameReader {
+    private InputStream inputStream;
+    private WakeupCountingStream socketStream;
+    private byte[] header;
+    private int maxFrameLength;
+    private AtomicLong idleWakeups;
+
+    public FrameReader(InputStream socketStream, int maxFrameLength) {
+        /*
+            This is the constructor for FrameReader class. It reads length prefixed
+            messages from a blocking stream, parking the calling thread in read()
+            until data arrives instead of polling available(). A message longer than
+            the maximum length is rejected before its buffer is allocated.
+
+            The reads of the socket stream below the buffer are counted, as each of
+            them is a wakeup of the reader thread.
+         */
+        this.socketStream = new WakeupCountingStream(socketStream);
+        this.inputStream = new BufferedInputStream(this.socketStream, MessageCodec.BUFFER_SIZE);
+        this.header = new byte[4];
+        this.maxFrameLength = maxFrameLength;
+        this.idleWakeups = new AtomicLong();
+    }
+
+    public byte[] readFrame() throws IOException {
+        /*
+            This method blocks until a complete message is received and returns the
+            message type followed by the payload. The 4 byte length is not included.
+
+            Of the wakeups needed to receive the message, all but the one that
+            completed it returned without a frame and are counted as idle.
+         */
+        long startWakeups = this.socketStream.wakeups;
+        this.readFully(this.header, 0, 4);
+        int frameLength = ((this.header[0] & 0xFF) << 24) | ((this.header[1] & 0xFF) << 16)
+                | ((this.header[2] & 0xFF) << 8) | (this.header[3] & 0xFF);
+        if (frameLength < 1 || frameLength > this.maxFrameLength) {
+            throw new IOException("Invalid message length " + frameLength);
+        }
+        byte[] frame = new byte[frameLength];
+        this.readFully(frame, 0, frameLength);
+        long wakeups = this.socketStream.wakeups - startWakeups;
+        if (wakeups > 1) {
+            this.idleWakeups.addAndGet(wakeups - 1);
+        }
+        return frame;
+    }
+
+    public void readFully(byte[] buffer, int offset, int length) throws IOException {
+        /*
+            This method blocks until length bytes are read.
+         */
+        int position = offset;
+        int end = offset + length;
+        while (position < end) {
+            int count = this.inputStream.read(buffer, position, end - position);
+            if (count < 0) {
+                throw new EOFException("Connection closed by neighbor");
+            }
+            position += count;
+        }
+    }
+
+    public long getIdleWakeups() {
+        return this.idleWakeups.get();
+    }
+
+    private static class WakeupCountingStream extends FilterInputStream {
+        // Only the reader thread reads and updates the count
+        private long wakeups = 0;
+
+        WakeupCountingStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            this.wakeups++;
+            return count;
+        }
+    }
+}
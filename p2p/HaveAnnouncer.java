@@ -0,0 +1,72 @@
+package p2p;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class HaveAnnouncer implements Runnable {
+    private PeerAdmin peerAdmin;
+    private int batchInterval;
+    private int batchSize;
+    private ScheduledExecutorService scheduler = null;
+
+    HaveAnnouncer(PeerAdmin padmin, int batchInterval, int batchSize) {
+        /*
+            This is the constructor for HaveAnnouncer class. The have messages of the
+            pieces downloaded by the peer are queued per neighbor and sent together,
+            either when the batch interval (in milliseconds) elapses or when a
+            neighbor has batch size pending haves. With an interval of 0 every have
+            is sent immediately.
+         */
+        this.peerAdmin = padmin;
+        this.batchInterval = batchInterval;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void initializeScheduler() {
+        if (this.batchInterval > 0) {
+            this.scheduler = this.peerAdmin.getThreadFactory().newScheduledExecutor();
+            this.scheduler.scheduleAtFixedRate(this, this.batchInterval, this.batchInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void announce(int pieceIndex) {
+        /*
+            This method queues a have message for every connected neighbor. A neighbor
+            that already has the piece is still told, because the neighbor detects the
+            end of the swarm from the complete bitfields of all the peers.
+
+            A have that is queued after the final flush of destroyScheduler(), by a
+            piece completed concurrently on another thread, is sent immediately.
+         */
+        for (PeerUtils peerUtils : this.peerAdmin.getConnectedPeerList()) {
+            int pendingCount = peerUtils.queueHaveMessage(pieceIndex);
+            if (this.scheduler == null || this.scheduler.isShutdown() || pendingCount >= this.batchSize) {
+                peerUtils.flushHaveMessages();
+            }
+        }
+    }
+
+    public void run() {
+        try {
+            for (PeerUtils peerUtils : this.peerAdmin.getConnectedPeerList()) {
+                peerUtils.flushHaveMessages();
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void destroyScheduler() {
+        /*
+            This method sends the haves that are still pending and stops the
+            scheduler, the neighbors need them to detect the end of the swarm.
+            A running flush is not interrupted, as that would close the channel
+            it is writing to.
+         */
+        if (this.scheduler != null) {
+            this.scheduler.shutdown();
+        }
+        this.run();
+    }
+}
@@ -0,0 +1,101 @@
+package p2p;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+public class LogFormatter {
+    private String peerID;
+    private SimpleDateFormat dateFormat;
+    private long cachedSecond;
+    private String cachedTime;
+
+    public LogFormatter(String peerID) {
+        /*
+            This is the constructor for LogFormatter class. It builds the lines of the
+            peer log from the event types of PeerLogger. It is not thread safe, every
+            writer of a log has its own formatter.
+         */
+        this.peerID = peerID;
+        this.dateFormat = new SimpleDateFormat("MMM-dd-yyyy hh:mm:ss a");
+        this.cachedSecond = Long.MIN_VALUE;
+    }
+
+    public void format(long timestamp, int eventType, String neighborPeerID, int pieceIndex, int pieceCount,
+                       Object detail, StringBuilder line) {
+        /*
+            This method appends the text of an event, without the line separator, to
+            the line. The time is formatted at most once per second.
+         */
+        line.append('[').append(this.formatTime(timestamp)).append("]: Peer [").append(this.peerID);
+        switch (eventType) {
+            case PeerLogger.HANDSHAKE_RECEIVED:
+                line.append("] has received a handshake message from Peer [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.CONNECTION_INITIATED:
+                line.append("] has initiated a TCP connection to Peer [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.CONNECTION_ESTABLISHED:
+                line.append("] is connected to Peer [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.BITFIELD_SENT:
+                line.append("] has sent its bitfield to Peer [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.BITFIELD_RECEIVED:
+                line.append("] has received a bitfield message from Peer [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.REQUEST_RECEIVED:
+                line.append("] has received a request message for piece [").append(detail)
+                    .append("] from Peer [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.PIECE_SENT:
+                line.append("] has sent piece [").append(detail).append("] Peer [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.PREFERRED_NEIGHBORS_CHANGED:
+                line.append("] has the following preferred neighbors [").append(detail).append("].");
+                break;
+            case PeerLogger.OPTIMISTIC_NEIGHBOR_CHANGED:
+                line.append("] has the following peer as optimistically unchoked neighbor [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.UNCHOKED:
+                line.append("] is unchoked by [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.CHOKED:
+                line.append("] is choked by [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.HAVE_RECEIVED:
+                line.append("] received a ‘have’ message from [").append(neighborPeerID)
+                    .append("] for the piece [").append(pieceIndex).append("].");
+                break;
+            case PeerLogger.INTERESTED_SENT:
+                line.append("] sent an ‘interested’ message to [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.INTERESTED_RECEIVED:
+                line.append("] received an ‘interested’ message from [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.NOT_INTERESTED_SENT:
+                line.append("] sent a ‘not interested’ message to [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.NOT_INTERESTED_RECEIVED:
+                line.append("] received the ‘not interested’ message from [").append(neighborPeerID).append("].");
+                break;
+            case PeerLogger.PIECE_DOWNLOADED:
+                line.append("] has downloaded the piece [").append(pieceIndex).append("] from [").append(neighborPeerID)
+                    .append("]. The number of pieces it has is [").append(pieceCount).append("].");
+                break;
+            case PeerLogger.DOWNLOAD_COMPLETED:
+                line.append("] has downloaded the complete file.");
+                break;
+            default:
+                break;
+        }
+    }
+
+    private String formatTime(long timestamp) {
+        long second = Math.floorDiv(timestamp, 1000L);
+        if (second != this.cachedSecond) {
+            this.cachedTime = this.dateFormat.format(new Date(timestamp));
+            this.cachedSecond = second;
+        }
+        return this.cachedTime;
+    }
+}
@@ -0,0 +1,105 @@
+package p2p;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LogRingBuffer {
+    private int mask;
+    private AtomicLongArray sequences;
+    private long[] timestamps;
+    private int[] eventTypes;
+    private String[] neighborPeerIDs;
+    private int[] pieceIndexes;
+    private int[] pieceCounts;
+    private Object[] details;
+    private AtomicLong tail;
+    private long head;
+    private AtomicLong droppedEvents;
+
+    public LogRingBuffer(int capacity) {
+        /*
+            This is the constructor for LogRingBuffer class. It is a bounded queue of
+            log events for many producer threads and a single consumer thread. The
+            events are kept in preallocated parallel arrays, so offering an event does
+            not allocate, and a producer never waits: when the buffer is full the
+            event is dropped and counted.
+
+            The capacity is rounded up to a power of two.
+         */
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int slot = 0; slot < size; slot++) {
+            this.sequences.set(slot, slot);
+        }
+        this.timestamps = new long[size];
+        this.eventTypes = new int[size];
+        this.neighborPeerIDs = new String[size];
+        this.pieceIndexes = new int[size];
+        this.pieceCounts = new int[size];
+        this.details = new Object[size];
+        this.tail = new AtomicLong();
+        this.head = 0;
+        this.droppedEvents = new AtomicLong();
+    }
+
+    public boolean offer(long timestamp, int eventType, String neighborPeerID, int pieceIndex, int pieceCount, Object detail) {
+        /*
+            This method claims a slot with a compare and set on the tail and then
+            publishes the event by advancing the sequence of the slot. The sequence
+            of a slot tells whether it is free for the producer of a given position
+            or holds an event for the consumer.
+
+            Returns false if the buffer is full and the event was dropped.
+         */
+        while (true) {
+            long position = this.tail.get();
+            int slot = (int) position & this.mask;
+            long difference = this.sequences.get(slot) - position;
+            if (difference == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.timestamps[slot] = timestamp;
+                    this.eventTypes[slot] = eventType;
+                    this.neighborPeerIDs[slot] = neighborPeerID;
+                    this.pieceIndexes[slot] = pieceIndex;
+                    this.pieceCounts[slot] = pieceCount;
+                    this.details[slot] = detail;
+                    this.sequences.lazySet(slot, position + 1);
+                    return true;
+                }
+            }
+            else if (difference < 0) {
+                this.droppedEvents.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    public boolean poll(PeerLogger.LogEvent event) {
+        /*
+            This method moves the oldest published event into the given holder and
+            frees its slot. It must only be called from the consumer thread.
+
+            Returns false if there is no published event.
+         */
+        int slot = (int) this.head & this.mask;
+        if (this.sequences.get(slot) != this.head + 1) {
+            return false;
+        }
+        event.timestamp = this.timestamps[slot];
+        event.eventType = this.eventTypes[slot];
+        event.neighborPeerID = this.neighborPeerIDs[slot];
+        event.pieceIndex = this.pieceIndexes[slot];
+        event.pieceCount = this.pieceCounts[slot];
+        event.detail = this.details[slot];
+        this.neighborPeerIDs[slot] = null;
+        this.details[slot] = null;
+        this.sequences.lazySet(slot, this.head + this.mask + 1);
+        this.head++;
+        return true;
+    }
+
+    public long getDroppedEvents() {
+        return this.droppedEvents.get();
+    }
+}
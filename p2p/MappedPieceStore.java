@@ -0,0 +1,73 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedPieceStore extends FilePieceStore {
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+    private MappedByteBuffer[] segments;
+    private int piecesPerSegment;
+
+    public MappedPieceStore(File file, long fileSize, int pieceSize) throws IOException {
+        /*
+            This is the constructor for MappedPieceStore class. The file is mapped in
+            segments of whole pieces, as a single mapping is limited to 2 GB. Pieces are
+            copied with absolute get and put calls, which do not change the position
+            of the shared buffers and can run concurrently for different pieces.
+         */
+        super(file, fileSize, pieceSize);
+        this.piecesPerSegment = (int) Math.max(1, MAX_SEGMENT_SIZE / pieceSize);
+        int segmentCount = (this.pieceCount + this.piecesPerSegment - 1) / this.piecesPerSegment;
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int segment = 0; segment < segmentCount; segment++) {
+            long position = (long) segment * this.piecesPerSegment * pieceSize;
+            long size = Math.min((long) this.piecesPerSegment * pieceSize, fileSize - position);
+            this.segments[segment] = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        }
+    }
+
+    public void writePiece(int pieceIndex, byte[] data) throws IOException {
+        this.getSegment(pieceIndex).put(this.getSegmentOffset(pieceIndex), data, 0, data.length);
+    }
+
+    public void writeBlock(int pieceIndex, int offset, ByteBuffer data) throws IOException {
+        this.getSegment(pieceIndex).put(this.getSegmentOffset(pieceIndex) + offset, data, data.position(), data.remaining());
+    }
+
+    public void writePieces(int firstPieceIndex, ByteBuffer data) throws IOException {
+        /*
+            The pieces are copied one at a time, as consecutive pieces can lie in
+            different segments.
+         */
+        int pieceIndex = firstPieceIndex;
+        for (int offset = 0; offset < data.remaining(); offset += this.pieceSize) {
+            int length = Math.min(this.pieceSize, data.remaining() - offset);
+            this.getSegment(pieceIndex).put(this.getSegmentOffset(pieceIndex), data, data.position() + offset, length);
+            pieceIndex++;
+        }
+    }
+
+    public byte[] readPiece(int pieceIndex) throws IOException {
+        byte[] data = new byte[this.getPieceLength(pieceIndex)];
+        this.getSegment(pieceIndex).get(this.getSegmentOffset(pieceIndex), data, 0, data.length);
+        return data;
+    }
+
+    public void force() throws IOException {
+        for (MappedByteBuffer segment : this.segments) {
+            segment.force();
+        }
+    }
+
+    private MappedByteBuffer getSegment(int pieceIndex) {
+        return this.segments[pieceIndex / this.piecesPerSegment];
+    }
+
+    private int getSegmentOffset(int pieceIndex) {
+        return (pieceIndex % this.piecesPerSegment) * this.pieceSize;
+    }
+}
@@ -9,6 +9,7 @@ public class Message {
     private int messageLength;
     private char messageType;
     private byte[] messagePayload;
+    private int payloadOffset;
 
     public Message() {
 
@@ -43,30 +44,26 @@ public class Message {
     }
 
     public byte[] getMessagePayload() {
+        if (this.payloadOffset != 0) {
+            return getPayload(this.messagePayload, this.payloadOffset);
+        }
         return messagePayload;
     }
 
     public void setMessagePayload(byte[] messagePayload) {
         this.messagePayload = messagePayload;
-    }
-
-    public byte[] constructMessage() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            byte[] messageBytes = ByteBuffer.allocate(4).putInt(this.messageLength).array();
-            baos.write(messageBytes);
-            baos.write((byte) this.messageType);
-            baos.write(this.messagePayload);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return baos.toByteArray();
+        this.payloadOffset = 0;
     }
 
     public void setMessage(int len, byte[] message) {
+        /*
+            The received message is parsed in place. The payload starts after the
+            type byte and is only copied when it is requested as a separate array.
+        */
         this.messageLength = len;
         this.messageType = getMessageTypeAsChar(message, 0);
-        this.messagePayload = getPayload(message, 1);
+        this.messagePayload = message;
+        this.payloadOffset = 1;
     }
 
     public char getMessageTypeAsChar(byte[] message, int index) {
@@ -80,7 +77,7 @@ public class Message {
     }
 
     public int getPieceIndexFromPayload() {
-        return convertByteArrayToInteger(this.messagePayload, 0);
+        return convertByteArrayToInteger(this.messagePayload, this.payloadOffset);
     }
 
     public int convertByteArrayToInteger(byte[] message, int start) {
@@ -92,16 +89,23 @@ public class Message {
         return buffer.getInt();
     }
 
-    public BitSet getBitFieldMessage() {
-        return BitSet.valueOf(this.messagePayload);
+    public int getBlockOffsetFromPayload() {
+        return convertByteArrayToInteger(this.messagePayload, this.payloadOffset + 4);
     }
 
-    public byte[] getPieceFromPayload() {
-        int size = this.messageLength - 5;
-        byte[] piece = new byte[size];
-        for (int i = 0; i < size; i++) {
-            piece[i] = this.messagePayload[i + 4];
-        }
-        return piece;
+    public int getBlockLengthFromPayload() {
+        return convertByteArrayToInteger(this.messagePayload, this.payloadOffset + 8);
+    }
+
+    public ByteBuffer getBlockFromPayload() {
+        /*
+            The block of a piece message follows the piece index and the offset.
+            It is returned as a view of the received message without copying it.
+        */
+        return ByteBuffer.wrap(this.messagePayload, this.payloadOffset + 8, this.messageLength - 9);
+    }
+
+    public BitSet getBitFieldMessage() {
+        return BitSet.valueOf(ByteBuffer.wrap(this.messagePayload, this.payloadOffset, this.messageLength - 1));
     }
 }
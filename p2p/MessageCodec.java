@@ -0,0 +1,39 @@
+package p2p;
+
+import java.nio.ByteBuffer;
+
+public class MessageCodec {
+    /*
+        The raw wire format of the messages is a 4 byte length, a 1 byte type and
+        the payload. The messages are queued as buffers on the OutboundQueue of the
+        connection, so only the header has to be encoded.
+     */
+    public static final int HEADER_LENGTH = 5;
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    public static ByteBuffer encodeHeader(char messageType, byte[]... payload) {
+        /*
+            This method returns the 5 byte header of a message as a buffer ready to be
+            written to a channel, followed by the payload buffers.
+         */
+        int payloadLength = 0;
+        for (byte[] part : payload) {
+            payloadLength += part.length;
+        }
+        return encodeHeader(messageType, payloadLength);
+    }
+
+    public static ByteBuffer encodeHeader(char messageType, int payloadLength) {
+        byte[] header = new byte[HEADER_LENGTH];
+        putHeader(header, payloadLength + 1, messageType);
+        return ByteBuffer.wrap(header);
+    }
+
+    private static void putHeader(byte[] header, int messageLength, char messageType) {
+        header[0] = (byte) (messageLength >>> 24);
+        header[1] = (byte) (messageLength >>> 16);
+        header[2] = (byte) (messageLength >>> 8);
+        header[3] = (byte) messageLength;
+        header[4] = (byte) messageType;
+    }
+}
@@ -4,7 +4,6 @@ import java.util.*;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.lang.*;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class OptimisticNeighborScheduler implements Runnable {
@@ -17,7 +16,7 @@ public class OptimisticNeighborScheduler implements Runnable {
     OptimisticNeighborScheduler(PeerAdmin peerAdmin) {
         this.peerAdmin = peerAdmin;
         this.interval = peerAdmin.getOptimisticUnchokingInterval();
-        this.scheduler = Executors.newScheduledThreadPool(1);
+        this.scheduler = peerAdmin.getThreadFactory().newScheduledExecutor();
     }
 
     public void initializeScheduler() {
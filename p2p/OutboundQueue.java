@@ -0,0 +1,167 @@
+package p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.concurrent.locks.LockSupport;
+
+public class OutboundQueue {
+    private static final int MAX_GATHER_BUFFERS = 64;
+
+    private ConcurrentLinkedQueue<Object> parts;
+    private AtomicLong queuedBytes;
+    private long highWatermark;
+    private long lowWatermark;
+    private volatile boolean isCongested;
+    private volatile boolean isClosed;
+    private volatile Thread writerThread;
+    private Runnable resumeCallback;
+    private LongConsumer regionCallback;
+    private ByteBuffer[] gatherBuffers;
+
+    public OutboundQueue(long highWatermark, long lowWatermark, Runnable resumeCallback, LongConsumer regionCallback) {
+        /*
+            This is the constructor for OutboundQueue class. It holds the messages
+            that are waiting to be written to one neighbor, as ByteBuffers and
+            FileRegions. Any thread can add messages, a single writer (the writer
+            thread of the connection or the selector thread) drains them.
+
+            When the queued bytes reach the high watermark the queue is congested, and
+            no new piece uploads should be added until it drains to the low watermark.
+            The resume callback is then run by the writer.
+
+            The region callback is passed the bytes of every transfer of a FileRegion,
+            the blocks of the uploaded pieces, once they are written to the socket.
+         */
+        this.parts = new ConcurrentLinkedQueue<>();
+        this.queuedBytes = new AtomicLong();
+        this.highWatermark = Math.max(1, highWatermark);
+        this.lowWatermark = Math.min(lowWatermark, this.highWatermark);
+        this.isCongested = false;
+        this.isClosed = false;
+        this.resumeCallback = resumeCallback;
+        this.regionCallback = regionCallback;
+        this.gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+    }
+
+    public synchronized void add(Object... message) {
+        /*
+            This method queues the parts of a message. The parts of one message are
+            added under the lock so that messages from different threads do not
+            interleave. Control messages are always accepted, so that the protocol
+            state stays consistent, only piece uploads are held back by the caller.
+         */
+        long messageBytes = 0;
+        for (Object part : message) {
+            messageBytes += sizeOf(part);
+            this.parts.add(part);
+        }
+        if (this.queuedBytes.addAndGet(messageBytes) >= this.highWatermark) {
+            this.isCongested = true;
+        }
+        Thread writer = this.writerThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        /*
+            This method writes queued parts until the queue is empty or the channel
+            does not accept more bytes. Consecutive buffers, such as several small
+            control messages, are written with a single gathering write.
+
+            Returns true if the queue was drained.
+         */
+        boolean isDrained = true;
+        while (true) {
+            Object part = this.parts.peek();
+            if (part == null) {
+                break;
+            }
+            if (part instanceof FileRegion) {
+                FileRegion region = (FileRegion) part;
+                long size = region.remaining();
+                long transferred = region.transferTo(channel);
+                if (this.regionCallback != null && transferred > 0) {
+                    this.regionCallback.accept(transferred);
+                }
+                if (region.hasRemaining()) {
+                    this.queuedBytes.addAndGet(region.remaining() - size);
+                    isDrained = false;
+                    break;
+                }
+                this.parts.poll();
+                this.queuedBytes.addAndGet(-size);
+                continue;
+            }
+            int count = 0;
+            for (Object next : this.parts) {
+                if (!(next instanceof ByteBuffer) || count == MAX_GATHER_BUFFERS) {
+                    break;
+                }
+                this.gatherBuffers[count++] = (ByteBuffer) next;
+            }
+            this.queuedBytes.addAndGet(-channel.write(this.gatherBuffers, 0, count));
+            int written = 0;
+            while (written < count && !this.gatherBuffers[written].hasRemaining()) {
+                this.parts.poll();
+                written++;
+            }
+            Arrays.fill(this.gatherBuffers, 0, count, null);
+            if (written < count) {
+                isDrained = false;
+                break;
+            }
+        }
+        if (this.isCongested && this.queuedBytes.get() <= this.lowWatermark) {
+            this.isCongested = false;
+            if (this.resumeCallback != null) {
+                this.resumeCallback.run();
+            }
+        }
+        return isDrained;
+    }
+
+    public void runWriter(SocketChannel channel) throws IOException {
+        /*
+            This method is the loop of the writer thread of a blocking connection. The
+            thread parks while the queue is empty and is unparked by add().
+         */
+        this.writerThread = Thread.currentThread();
+        while (!this.isClosed) {
+            if (this.parts.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+            this.writeTo(channel);
+        }
+    }
+
+    public void close() {
+        this.isClosed = true;
+        Thread writer = this.writerThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.parts.isEmpty();
+    }
+
+    public boolean isCongested() {
+        return this.isCongested;
+    }
+
+    private static long sizeOf(Object part) {
+        if (part instanceof FileRegion) {
+            return ((FileRegion) part).remaining();
+        }
+        return ((ByteBuffer) part).remaining();
+    }
+}
@@ -2,69 +2,129 @@ package p2p;
 
 import java.io.*;
 import java.lang.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class PeerAdmin {
 	private int pieceCount;
 	private String peerID;
-	private volatile Boolean destroyPeer;
+	private AtomicBoolean destroyPeer;
+	private CountDownLatch terminationLatch;
 	private volatile String optimisticUnchokedPeerID;
 	private PeerServer server;
+	private PeerSelector selector;
 	private CommonConfiguration commonConfiguration;
 	private PeerInfoConfiguration peerInfoConfiguration;
 	private RemotePeerInfo currentPeerConfig;
-	private Thread serverThread;
+	private volatile Thread serverThread;
+	private PeerThreadFactory threadFactory;
 	private volatile ServerSocket listener;
 	private volatile PeerLogger logger;
-	private volatile RandomAccessFile randomFileAccessor;
+	private volatile PieceStore pieceStore;
+	private volatile PieceHashes pieceHashes;
+	private volatile PieceVerifier pieceVerifier;
+	private volatile BitfieldCheckpoint bitfieldCheckpoint;
+	private volatile WriteBackStage writeBackStage;
+	private ConcurrentHashMap<Integer, byte[]> pieceBuffers;
+	private volatile PieceCache pieceCache;
 	private volatile PreferredNeighborScheduler preferredNeighborScheduler;
 	private volatile OptimisticNeighborScheduler optimisticNeighborScheduler;
 	private volatile TerminationScheduler terminationScheduler;
-	private volatile String[] requestedPeerPieces;
+	private volatile HaveAnnouncer haveAnnouncer;
+	private ChokingStrategy chokingStrategy;
+	private volatile RequestTracker requestTracker;
+	private PiecePicker piecePicker;
 	private ArrayList<String> currentPeerList;
-	private volatile HashSet<String> unchokedPeerSet;
-	private volatile HashSet<String> interestedPeerSet;
+	private volatile Set<String> unchokedPeerSet;
+	private volatile Set<String> interestedPeerSet;
 	private HashMap<String, RemotePeerInfo> remotePeerInfoMap;
-	private volatile HashMap<String, PeerUtils> connectedPeers;
-	private volatile HashMap<String, Thread> connectedThreads;
-	private volatile HashMap<String, BitSet> availablePieces;
-	private volatile HashMap<String, Integer> downloadRate;
+	private volatile ConcurrentHashMap<String, PeerUtils> connectedPeers;
+	private volatile ConcurrentHashMap<String, Thread> connectedThreads;
+	private volatile ConcurrentHashMap<String, BitSet> availablePieces;
+	private ConcurrentHashMap<String, AtomicInteger> missingPieceCounts;
+	private CompletionTracker completionTracker;
+	private final Object bitfieldLock = new Object();
+	private static final long PIECE_HASH_WAIT_MILLIS = 60000;
+	private AtomicIntegerArray pieceFailureCounts;
 
 	public PeerAdmin(String peerID) {
 		/*
 			This is the constructor for PeerAdmin class
+
+			The state of the peer is not guarded by a single monitor. The connection
+			and choke sets are concurrent collections, the bitfields are guarded by the
+			bitfield lock, and the request tracker and piece picker synchronize on their
+			own.
 		 */
 		this.peerID = peerID;
-		this.logger = new PeerLogger(this.peerID);
-		this.destroyPeer = false;
+		this.destroyPeer = new AtomicBoolean(false);
+		this.terminationLatch = new CountDownLatch(1);
 
 		this.commonConfiguration = new CommonConfiguration();
 		this.commonConfiguration.unpackCommonConfiguration();
+		this.logger = new PeerLogger(this.peerID, this.commonConfiguration.logMode, this.commonConfiguration.logBufferSize,
+				"on".equalsIgnoreCase(this.commonConfiguration.eventJournal));
 
 		this.peerInfoConfiguration = new PeerInfoConfiguration();
 		this.peerInfoConfiguration.unpackConfigurationFile();
 
+		this.threadFactory = new PeerThreadFactory(this.commonConfiguration.threadMode);
+		this.chokingStrategy = createChokingStrategy(this.commonConfiguration.chokingStrategy);
+
 		this.pieceCount = this.calculateNumberOfPieces();
-		this.requestedPeerPieces = new String[this.pieceCount];
+		this.piecePicker = new PiecePicker(this.pieceCount);
+		this.requestTracker = new RequestTracker(this.pieceCount, getPieceSize(), getFileSize(),
+				this.commonConfiguration.blockSize, this.piecePicker);
 
 		this.currentPeerConfig = this.peerInfoConfiguration.getremotePeerInfo(this.peerID);
 		this.remotePeerInfoMap = this.peerInfoConfiguration.getRemotePeerInfoMap();
 		this.currentPeerList = this.peerInfoConfiguration.getPeerList();
 
 		initFileSystem();
+		// A peer that is asked to verify the pieces does not start without the hashes
+		if ("on".equalsIgnoreCase(this.commonConfiguration.pieceVerification)) {
+			initPieceHashes(new File("peer_" + this.peerID + "/" + getFileName()));
+		}
 
-		this.connectedPeers = new HashMap<>();
-		this.connectedThreads = new HashMap<>();
-		this.unchokedPeerSet = new HashSet<>();
-		this.interestedPeerSet = new HashSet<>();
-		this.downloadRate = new HashMap<>();
+		this.connectedPeers = new ConcurrentHashMap<>();
+		this.connectedThreads = new ConcurrentHashMap<>();
+		this.unchokedPeerSet = ConcurrentHashMap.newKeySet();
+		this.interestedPeerSet = ConcurrentHashMap.newKeySet();
 
 		this.availablePieces = getPieceAvailability();
+		this.missingPieceCounts = new ConcurrentHashMap<>();
+		this.completionTracker = new CompletionTracker(this.availablePieces.keySet(), this.pieceCount);
+		for (String neighborPeerID : this.availablePieces.keySet()) {
+			this.completionTracker.setAvailablePieceCount(neighborPeerID, this.availablePieces.get(neighborPeerID).cardinality());
+			if (!neighborPeerID.equals(this.peerID)) {
+				this.missingPieceCounts.put(neighborPeerID, new AtomicInteger());
+				this.recountMissingPieces(neighborPeerID);
+			}
+		}
+		// Pieces can be received as soon as the server is started
+		this.haveAnnouncer = new HaveAnnouncer(this, this.commonConfiguration.haveBatchInterval, this.commonConfiguration.haveBatchSize);
+		this.haveAnnouncer.initializeScheduler();
+		if (this.bitfieldCheckpoint != null) {
+			this.bitfieldCheckpoint.initializeScheduler();
+			// The checkpoint is also written if the process is terminated before the download completes
+			Runtime.getRuntime().addShutdownHook(new Thread(this.bitfieldCheckpoint));
+		}
 		startPieceServer();
 		createNeighbourConnections();
 
@@ -82,11 +142,12 @@ public class PeerAdmin {
 	public void initFileSystem() {
 		/*
 			This method is responsible for creating a new directory for the peer,
-			initializing the file to be sent, and initializes the file access class
-			for accessing the file.
+			initializing the file to be sent, and initializes the piece store
+			for accessing the file. If resume is enabled, the bitfield checkpoint
+			of the file is prepared.
 
 			Random File Access is required as a latter segment of data can be required
-			to be written.
+			to be written. The mapped piece store is used if configured in Common.cfg.
 	 	*/
 		try {
 			String filepath = "peer_" + this.peerID;
@@ -94,12 +155,30 @@ public class PeerAdmin {
 			file.mkdir();
 			String filename = filepath + "/" + getFileName();
 			file = new File(filename);
-			if (!hasFile()) {
-				file.createNewFile();
+			boolean isExistingFile = file.exists();
+			if ("mapped".equalsIgnoreCase(this.commonConfiguration.pieceStore)) {
+				this.pieceStore = new MappedPieceStore(file, getFileSize(), getPieceSize());
+			}
+			else {
+				this.pieceStore = new FilePieceStore(file, getFileSize(), getPieceSize());
 			}
-			this.randomFileAccessor = new RandomAccessFile(file, "rw");
-			if (!hasFile()) {
-				this.randomFileAccessor.setLength(this.commonConfiguration.fileSize);
+			this.pieceBuffers = new ConcurrentHashMap<>();
+			if (this.commonConfiguration.pieceCacheSize > 0) {
+				this.pieceCache = new PieceCache((long) this.commonConfiguration.pieceCacheSize << 20,
+						"direct".equalsIgnoreCase(this.commonConfiguration.pieceCacheMemory));
+			}
+			if (!hasFile() && "on".equalsIgnoreCase(this.commonConfiguration.writeBack)) {
+				this.writeBackStage = new WriteBackStage(this.pieceStore, getPieceSize(), this.pieceCount,
+						this.commonConfiguration.forcePolicy, this.commonConfiguration.forceInterval);
+				this.writeBackStage.initializeWriter(this.threadFactory);
+			}
+			if (!hasFile() && "on".equalsIgnoreCase(this.commonConfiguration.resume)) {
+				this.bitfieldCheckpoint = new BitfieldCheckpoint(this, new File(filename + ".bitfield"),
+						this.commonConfiguration.checkpointInterval);
+				// A checkpoint is meaningless without the file it describes
+				if (!isExistingFile) {
+					this.bitfieldCheckpoint.delete();
+				}
 			}
 		} 
 		catch (Exception e) {
@@ -107,14 +186,83 @@ public class PeerAdmin {
 		}
 	}
 
-	public HashMap<String, BitSet> getPieceAvailability() {
+	public void initPieceHashes(File file) {
+		/*
+			This method loads the hashes that the received pieces are verified
+			against. The peer that has the file generates the metadata file from its
+			copy, or reuses it if the file has not changed since, the other peers
+			wait until it has been written.
+
+			A metadata file left over from another copy of the file is not used: if
+			the file of a peer that has it can be reached, the other peers wait until
+			the metadata file was generated from it. The peer fails to start if the
+			hashes cannot be loaded, or do not match the file of Common.cfg.
+		 */
+		File metadataFile = this.getPieceHashFile();
+		try {
+			if (this.hasFile()) {
+				this.pieceHashes = PieceHashes.loadOrGenerate(file, metadataFile, this.commonConfiguration.pieceHashAlgorithm,
+						getFileSize(), getPieceSize());
+			}
+			else {
+				File seedFile = this.getSeedFile();
+				long deadline = System.currentTimeMillis() + PIECE_HASH_WAIT_MILLIS;
+				while (this.pieceHashes == null) {
+					if (metadataFile.exists()) {
+						PieceHashes pieceHashes = PieceHashes.read(metadataFile);
+						if (seedFile == null || pieceHashes.isGeneratedFrom(seedFile)) {
+							this.pieceHashes = pieceHashes;
+							break;
+						}
+					}
+					if (System.currentTimeMillis() >= deadline) {
+						throw new IOException(metadataFile + (metadataFile.exists() ? " was not generated from " + seedFile : " was not written"));
+					}
+					Thread.sleep(100);
+				}
+			}
+			if (this.pieceHashes.getFileSize() != getFileSize() || this.pieceHashes.getPieceSize() != getPieceSize()
+					|| !this.pieceHashes.getAlgorithm().equalsIgnoreCase(this.commonConfiguration.pieceHashAlgorithm)) {
+				throw new IOException(metadataFile + " does not match FileSize, PieceSize and PieceHashAlgorithm of Common.cfg");
+			}
+		}
+		catch (Exception e) {
+			throw new IllegalStateException("Peer " + this.peerID + ": the piece hashes could not be loaded", e);
+		}
+		this.pieceVerifier = new PieceVerifier(this.pieceHashes, this.pieceStore, this.threadFactory,
+				this.commonConfiguration.verifierThreads);
+		this.pieceFailureCounts = new AtomicIntegerArray(this.pieceCount);
+	}
+
+	private File getSeedFile() {
+		/*
+			Returns the file of a peer that has it, if it can be reached from this
+			peer, as when the peers share a file system, or null otherwise.
+		 */
+		for (RemotePeerInfo remotePeerInfo : this.remotePeerInfoMap.values()) {
+			File seedFile = new File("peer_" + remotePeerInfo.peerID + "/" + getFileName());
+			if (remotePeerInfo.containsFile == 1 && seedFile.exists()) {
+				return seedFile;
+			}
+		}
+		return null;
+	}
+
+	public File getPieceHashFile() {
+		String pieceHashFile = this.commonConfiguration.pieceHashFile;
+		return new File(pieceHashFile != null ? pieceHashFile : getFileName() + ".hashes");
+	}
+
+	public ConcurrentHashMap<String, BitSet> getPieceAvailability() {
 		/*
 			This method is responsible for initializing the file pieces available
-			in the peer's folder.
+			in the peer's folder. A peer without the file resumes from the pieces
+			recorded by its bitfield checkpoint, if resume is enabled.
 
-			Returns a hashmap with peerID as key and available pieces bitset
+			Returns a hashmap with peerID as key and available pieces bitset. The
+			bitsets are updated in place and never replaced.
 		 */
-		HashMap<String, BitSet> availablePieces = new HashMap<>();
+		ConcurrentHashMap<String, BitSet> availablePieces = new ConcurrentHashMap<>();
 
 		// Check piece availability for all peer IDs
 		for (String peerID : this.remotePeerInfoMap.keySet()) {
@@ -122,6 +270,16 @@ public class PeerAdmin {
 			if (this.remotePeerInfoMap.get(peerID).containsFile == 1) {
 				availability.set(0, this.pieceCount);
 				availablePieces.put(peerID, availability);
+				if (!peerID.equals(this.peerID)) {
+					this.piecePicker.addBitfield(availability);
+				}
+			}
+			else if (peerID.equals(this.peerID) && this.bitfieldCheckpoint != null) {
+				availability = this.bitfieldCheckpoint.load();
+				if (this.pieceVerifier != null && "on".equalsIgnoreCase(this.commonConfiguration.resumeVerification)) {
+					this.verifyResumedPieces(availability);
+				}
+				availablePieces.put(peerID, availability);
 			}
 			else {
 				availability.clear();
@@ -132,15 +290,46 @@ public class PeerAdmin {
 		return availablePieces;
 	}
 
+	private void verifyResumedPieces(BitSet availability) {
+		/*
+			This method verifies the pieces recorded by the checkpoint in parallel.
+			Pieces that do not match their hashes are cleared and downloaded again.
+		 */
+		int[] failedPieces = availability.stream().parallel().filter(pieceIndex -> {
+			try {
+				return !this.pieceVerifier.verifyStoredPiece(pieceIndex);
+			}
+			catch (Exception e) {
+				return true;
+			}
+		}).toArray();
+		for (int pieceIndex : failedPieces) {
+			availability.clear(pieceIndex);
+		}
+	}
+
 	public void startPieceServer() {
 		/*
 			This method initializes a ServerSocket, which listens for requests from
 			other neighbor peers. The server is run in a new thread.
+
+			With the selector transport, the listener and all neighbor connections
+			are handled by a single PeerSelector event loop thread instead.
 		 */
 		try {
-			this.listener = new ServerSocket(this.currentPeerConfig.peerPort);
+			if (this.isSelectorTransport()) {
+				this.selector = new PeerSelector(this);
+				this.listener = this.selector.bind(this.currentPeerConfig.peerPort);
+				this.serverThread = this.threadFactory.newThread(this.selector);
+				this.serverThread.start();
+				return;
+			}
+			// Sockets are opened through channels so that pieces can be sent with transferTo
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(this.currentPeerConfig.peerPort));
+			this.listener = serverChannel.socket();
 			this.server = new PeerServer(this.peerID, this.listener, this);
-			this.serverThread = new Thread(this.server);
+			this.serverThread = this.threadFactory.newThread(this.server);
 			this.serverThread.start();
 		} 
 		catch (Exception e) {
@@ -160,14 +349,20 @@ public class PeerAdmin {
 				if (currentPeerID.equals(this.peerID)) {
 					break;
 				}
+				// With the selector transport, hand the connection over to the event loop
+				else if (this.isSelectorTransport()) {
+					RemotePeerInfo peer = this.remotePeerInfoMap.get(currentPeerID);
+					PeerUtils peerUtils = this.selector.connect(peer.peerAddress, peer.peerPort, currentPeerID);
+					this.putConnectedPeer(peerUtils, currentPeerID);
+				}
 				// If not equal, create a new socket and run it in a thread
 				else {
 					RemotePeerInfo peer = this.remotePeerInfoMap.get(currentPeerID);
-					Socket socket = new Socket(peer.peerAddress, peer.peerPort);
+					Socket socket = SocketChannel.open(new InetSocketAddress(peer.peerAddress, peer.peerPort)).socket();
 					PeerUtils peerUtils = new PeerUtils(socket, this);
 					peerUtils.setNeighborPeerID(currentPeerID);
 					this.putConnectedPeer(peerUtils, currentPeerID);
-					Thread thread = new Thread(peerUtils);
+					Thread thread = this.threadFactory.newThread(peerUtils);
 					this.putConnectedThreads(currentPeerID, thread);
 					thread.start();
 				}
@@ -182,15 +377,34 @@ public class PeerAdmin {
 		return this.connectedPeers.get(peerID);
 	}
 
-	public synchronized void putConnectedPeer(PeerUtils peerUtils, String neighborPeerID) {
+	public Collection<PeerUtils> getConnectedPeerList() {
+		return this.connectedPeers.values();
+	}
+
+	public long getIdleWakeups() {
+		/*
+			This method returns the number of reader wakeups that did not complete a
+			message, over all the connections of the peer.
+		 */
+		if (this.selector != null) {
+			return this.selector.getIdleWakeups();
+		}
+		long idleWakeups = 0;
+		for (PeerUtils peerUtils : this.connectedPeers.values()) {
+			idleWakeups += peerUtils.getIdleWakeups();
+		}
+		return idleWakeups;
+	}
+
+	public void putConnectedPeer(PeerUtils peerUtils, String neighborPeerID) {
 		this.connectedPeers.put(neighborPeerID, peerUtils);
 	}
 
-	public synchronized HashMap<String, Thread> getConnectedThreads() {
+	public Map<String, Thread> getConnectedThreads() {
 		return this.connectedThreads;
 	}
 
-	public synchronized void putConnectedThreads(String peerHandler, Thread thread) {
+	public void putConnectedThreads(String peerHandler, Thread thread) {
 		this.connectedThreads.put(peerHandler, thread);
 	}
 	
@@ -212,168 +426,366 @@ public class PeerAdmin {
 		return this.commonConfiguration.optimisticUnchokingInterval;
 	}
 
-	public synchronized boolean checkIfInterested(String neighborPeerID) {
+	public int getBlockSize() {
+		return this.requestTracker.getBlockSize();
+	}
+
+	public int getRequestPipelineSize() {
+		return Math.max(1, this.commonConfiguration.requestPipelineSize);
+	}
+
+	public long getOutboundHighWatermark() {
+		return this.commonConfiguration.outboundHighWatermark;
+	}
+
+	public long getOutboundLowWatermark() {
+		return this.commonConfiguration.outboundLowWatermark;
+	}
+
+	public PeerThreadFactory getThreadFactory() {
+		return this.threadFactory;
+	}
+
+	public ChokingStrategy getChokingStrategy() {
+		return this.chokingStrategy;
+	}
+
+	private static ChokingStrategy createChokingStrategy(String name) {
+		/*
+			This method creates the choking strategy configured in Common.cfg. The
+			reciprocity strategy weighs the bytes uploaded to each neighbor, and the
+			seed strategy favors the fastest uploads once the file is complete.
+		 */
+		if ("reciprocity".equalsIgnoreCase(name)) {
+			return new ReciprocityChokingStrategy();
+		}
+		if ("seed".equalsIgnoreCase(name)) {
+			return new SeedChokingStrategy();
+		}
+		return new DefaultChokingStrategy();
+	}
+
+	public boolean isSelectorTransport() {
+		return "nio".equalsIgnoreCase(this.commonConfiguration.transport);
+	}
+
+	public boolean checkIfInterested(String neighborPeerID) {
 		/*
 			This method is responsible for checking if a neighbor peer has an
-			interested piece.
+			interested piece. The number of pieces that the neighbor has and the
+			peer lacks is kept up to date as the bitfields change.
 		*/
-		BitSet receiverBitField = this.getAvailablePieces(neighborPeerID);
-		BitSet senderBitField = this.getAvailablePieces(this.peerID);
-		for (int pieceIndex = 0; pieceIndex < receiverBitField.size() && pieceIndex < this.pieceCount; pieceIndex++) {
-			if (receiverBitField.get(pieceIndex) == true && senderBitField.get(pieceIndex) == false) {
-				return true;
-			}
+		AtomicInteger missingPieceCount = this.missingPieceCounts.get(neighborPeerID);
+		return missingPieceCount != null && missingPieceCount.get() > 0;
+	}
+
+	private void recountMissingPieces(String neighborPeerID) {
+		/*
+			This method counts the pieces that the neighbor has and the peer lacks
+			word by word. It is called when a whole bitfield is received.
+		 */
+		synchronized (this.bitfieldLock) {
+			BitSet missingPieces = (BitSet) this.availablePieces.get(neighborPeerID).clone();
+			missingPieces.andNot(this.availablePieces.get(this.peerID));
+			missingPieces.clear(this.pieceCount, Math.max(this.pieceCount, missingPieces.length()));
+			this.missingPieceCounts.get(neighborPeerID).set(missingPieces.cardinality());
 		}
-		return false;
 	}
 
 	public BitSet getAvailablePieces(String peerID) {
+		/*
+			The returned bitset is shared, it must be read while holding the bitfield lock.
+		 */
 		return this.availablePieces.get(peerID);
 	}
 
-	public synchronized void announcePieceAvailability(int pieceIndex) {
+	public boolean hasPiece(String peerID, int pieceIndex) {
+		synchronized (this.bitfieldLock) {
+			return this.availablePieces.get(peerID).get(pieceIndex);
+		}
+	}
+
+	public byte[] getBitFieldBytes() {
+		synchronized (this.bitfieldLock) {
+			return this.availablePieces.get(this.peerID).toByteArray();
+		}
+	}
+
+	public void announcePieceAvailability(int pieceIndex) {
 		/*
 			When a piece is downloaded by a peer, it has to announce the availability
 			of the piece to all its connected peers.
 
-			This message is responsible for sending a have message.
+			This message is responsible for sending a have message. The have messages
+			are batched per neighbor by the have announcer.
 		*/
-		for (String key : this.connectedPeers.keySet()) {
-			this.connectedPeers.get(key).sendHaveMessage(pieceIndex);
+		this.haveAnnouncer.announce(pieceIndex);
+	}
+
+	public BlockRequest checkForRequestedBlock(String neighborPeerID) {
+		/*
+			This method is responsible for setting the blocks requested
+			by the neighbor peer. Blocks of pieces that are being downloaded are
+			completed first, otherwise the rarest piece among the neighbors is selected.
+
+			Only copying the bitfields holds the bitfield lock. The rarest piece is
+			searched in the copies, so that the other neighbors can receive blocks and
+			update the bitfields meanwhile.
+		 */
+		BitSet receiverBitField;
+		BitSet senderBitField;
+		synchronized (this.bitfieldLock) {
+			receiverBitField = (BitSet) this.getAvailablePieces(neighborPeerID).clone();
+			senderBitField = (BitSet) this.getAvailablePieces(this.peerID).clone();
 		}
+		return this.requestTracker.nextRequest(neighborPeerID, receiverBitField, senderBitField, this.isEndgame());
 	}
 
-	public synchronized int checkForRequestedPeerPieces(String neighborPeerID) {
+	public boolean isEndgame() {
 		/*
-			This method is responsible for setting the pieces requested
-			by the neighbor peer
+			The peer is in the endgame once the number of missing pieces falls to the
+			EndgameThreshold configured in Common.cfg.
 		 */
-		BitSet receiverBitField = this.getAvailablePieces(neighborPeerID);
-		BitSet senderBitField = this.getAvailablePieces(this.peerID);
-		for (int pieceIndex = 0; pieceIndex < receiverBitField.size() && pieceIndex < this.pieceCount; pieceIndex++) {
-			if (receiverBitField.get(pieceIndex) == true && senderBitField.get(pieceIndex) == false && this.requestedPeerPieces[pieceIndex] == null) {
-				setRequestedPeerPieces(pieceIndex, neighborPeerID);
-				return pieceIndex;
+		int missingPieceCount = this.pieceCount - this.getCompletedPieceCount();
+		return missingPieceCount > 0 && missingPieceCount <= this.commonConfiguration.endgameThreshold;
+	}
+
+	public void cancelDuplicateRequests(String neighborPeerID, BlockRequest request) {
+		/*
+			This method is responsible for cancelling the endgame requests of a block
+			at the other neighbors, once the block is received from the neighbor.
+		 */
+		List<String> otherRequests = this.requestTracker.takeOtherRequests(request.getPieceIndex(), request.getOffset(), neighborPeerID);
+		for (String otherPeerID : otherRequests) {
+			PeerUtils peerUtils = this.connectedPeers.get(otherPeerID);
+			if (peerUtils != null) {
+				peerUtils.sendCancelMessage(request);
 			}
 		}
-		return -1;
 	}
 
-	public synchronized void setRequestedPeerPieces(int id, String peerID) {
-		this.requestedPeerPieces[id] = peerID;
+	public boolean isPieceCompletionProcessed() {
+		return this.pieceVerifier != null || this.writeBackStage != null || this.pieceCache != null;
 	}
 
-	public synchronized void resetRequestedPeerPieces(String neighborPeerID) {
+	public PieceVerifier getPieceVerifier() {
+		return this.pieceVerifier;
+	}
+
+	public void processCompletedPiece(int pieceIndex, Runnable markPiece) {
 		/*
-			This method is responsible for resetting the requested pieces
-			by the peers.
-		*/
-		for (int pieceIndex = 0; pieceIndex < this.requestedPeerPieces.length; pieceIndex++) {
-			if (this.requestedPeerPieces[pieceIndex] != null && this.requestedPeerPieces[pieceIndex].compareTo(neighborPeerID) == 0) {
-				setRequestedPeerPieces(pieceIndex, null);
+			This method hands a completed piece to the verifier, to the write-back
+			stage and to the piece cache, in that order, if they are enabled. The
+			callback marks the piece once its hash matches and it is written to the
+			piece store. The piece is cached before it is announced, as the neighbors
+			are likely to request it next.
+		 */
+		byte[] data = this.writeBackStage != null ? this.pieceBuffers.remove(pieceIndex) : null;
+		Runnable cachePiece = this.pieceCache == null ? markPiece : () -> {
+			this.cacheCompletedPiece(pieceIndex, data);
+			markPiece.run();
+		};
+		Runnable writePiece = data == null ? cachePiece : () -> this.writeBackStage.submit(pieceIndex, data, cachePiece);
+		if (this.pieceVerifier != null) {
+			this.pieceVerifier.submit(pieceIndex, data, writePiece, () -> this.pieceVerificationFailed(pieceIndex));
+		}
+		else {
+			writePiece.run();
+		}
+	}
+
+	private void cacheCompletedPiece(int pieceIndex, byte[] data) {
+		/*
+			A piece that was not assembled in memory is read back from the piece
+			store, where it was just written.
+		 */
+		try {
+			this.pieceCache.put(pieceIndex, data != null ? data : this.pieceStore.readPiece(pieceIndex));
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public boolean isPieceCacheEnabled() {
+		return this.pieceCache != null;
+	}
+
+	public ByteBuffer getCachedBlock(int pieceIndex, int offset, int length) throws IOException {
+		/*
+			This method returns a block of a piece from the piece cache. A piece that
+			is not cached is read from the piece store and cached.
+		 */
+		return this.getCachedPiece(pieceIndex).slice(offset, length);
+	}
+
+	private ByteBuffer getCachedPiece(int pieceIndex) throws IOException {
+		ByteBuffer piece = this.pieceCache.get(pieceIndex);
+		if (piece == null) {
+			byte[] data = this.pieceStore.readPiece(pieceIndex);
+			this.pieceCache.put(pieceIndex, data);
+			piece = ByteBuffer.wrap(data).asReadOnlyBuffer();
+		}
+		return piece;
+	}
+
+	private void pieceVerificationFailed(int pieceIndex) {
+		/*
+			A piece that does not match its hash is discarded and requested again.
+			The peer may have already told the neighbors that it is not interested,
+			so every neighbor that has the piece is told again.
+
+			A piece that keeps failing is not requested forever: the hashes or the
+			copies of the neighbors are wrong, so the peer gives up the download.
+		 */
+		this.pieceBuffers.remove(pieceIndex);
+		if (this.isDestroyPeer()) {
+			return;
+		}
+		int failureCount = this.pieceFailureCounts.incrementAndGet(pieceIndex);
+		if (failureCount > this.commonConfiguration.maxPieceFailures) {
+			if (this.destroyPeer()) {
+				System.err.println("Peer " + this.peerID + ": piece " + pieceIndex + " failed verification " + failureCount + " times, giving up the download");
 			}
+			return;
 		}
+		this.requestTracker.releasePiece(pieceIndex);
+		for (Map.Entry<String, PeerUtils> connectedPeer : this.connectedPeers.entrySet()) {
+			if (this.hasPiece(connectedPeer.getKey(), pieceIndex)) {
+				connectedPeer.getValue().sendInterestedMessage();
+				this.logger.sendInterestedMessage(connectedPeer.getKey());
+				connectedPeer.getValue().fillRequestPipeline();
+			}
+		}
+	}
+
+	public void resetRequestedPeerPieces(String neighborPeerID) {
+		/*
+			This method is responsible for resetting the requested blocks
+			by the peers.
+		*/
+		this.requestTracker.releaseRequests(neighborPeerID);
 	}
 
-	public synchronized void setOptimisticUnchokedPeer(String optimisticUnchokedPeerID) {
+	public void setOptimisticUnchokedPeer(String optimisticUnchokedPeerID) {
 		this.optimisticUnchokedPeerID = optimisticUnchokedPeerID;
 	}
 
-	public synchronized String getOptimisticUnchokedPeer() {
+	public String getOptimisticUnchokedPeer() {
 		return this.optimisticUnchokedPeerID;
 	}
 
 	// Interested Peer Set Utilities
 
-	public synchronized void insertIntoInterestedPeerSet(String neighborPeerID) {
+	public void insertIntoInterestedPeerSet(String neighborPeerID) {
 		this.interestedPeerSet.add(neighborPeerID);
 	}
 
-	public synchronized void removeFromInterestedPeerSet(String neighborPeerID) {
+	public void removeFromInterestedPeerSet(String neighborPeerID) {
 		if (this.interestedPeerSet != null) {
 			this.interestedPeerSet.remove(neighborPeerID);
 		}
 	}
 
-	public synchronized void resetInterestedPeerSet() {
+	public void resetInterestedPeerSet() {
 		this.interestedPeerSet.clear();
 	}
 
-	public synchronized HashSet<String> getInterestedPeerSet() {
+	public Set<String> getInterestedPeerSet() {
 		return this.interestedPeerSet;
 	}
 
 	// Unchoked Peer Set Utilities
 
-	public synchronized boolean insertIntoUnchokedPeerSet(String peerid) {
+	public boolean insertIntoUnchokedPeerSet(String peerid) {
 		return this.unchokedPeerSet.add(peerid);
 	}
 
-	public synchronized HashSet<String> getUnchokedPeerSet() {
+	public Set<String> getUnchokedPeerSet() {
 		return this.unchokedPeerSet;
 	}
 
-	public synchronized void emptyUnchokedPeerSet() {
+	public void emptyUnchokedPeerSet() {
 		this.unchokedPeerSet.clear();
 	}
 
-	public synchronized void updateUnchokedPeerSet(HashSet<String> newUnchokedPeerSet) {
-		this.unchokedPeerSet = newUnchokedPeerSet;
+	public void updateUnchokedPeerSet(Set<String> newUnchokedPeerSet) {
+		/*
+			The new set is published as a whole, so a neighbor thread sees either the
+			previous or the new preferred neighbors.
+		 */
+		Set<String> unchokedPeerSet = ConcurrentHashMap.newKeySet();
+		unchokedPeerSet.addAll(newUnchokedPeerSet);
+		this.unchokedPeerSet = unchokedPeerSet;
 	}
 
 	// File Utilities
 
-	public synchronized void writeToFile(byte[] data, int pieceIndex) {
+	public boolean writeBlock(String neighborPeerID, int pieceIndex, int offset, ByteBuffer block) {
 		/*
-			This method is responsible for writing data to the given pieceIndex.
-			This process required random file access as a latter pieceIndex can
-			also be received.
+			This method is responsible for writing a received block in place into its
+			piece. With the write-back stage, the piece is assembled in memory instead
+			and written once it is completed.
+
+			Only a block that lies within its piece and is requested from the neighbor
+			is written, so that a neighbor cannot grow the file or overwrite a piece
+			that was already verified and announced.
+
+			Returns true if the block completes the piece.
 		 */
 		try {
-			// Piece Size * PieceIndex gives where to start writing the file from.
-			int pieceIdxPosition = this.getPieceSize() * pieceIndex;
-
-			// Seek the position and write the data
-			this.randomFileAccessor.seek(pieceIdxPosition);
-			this.randomFileAccessor.write(data);
-		} 
+			int length = block.remaining();
+			if (pieceIndex < 0 || pieceIndex >= this.pieceCount || offset < 0
+					|| (long) offset + length > this.getPieceLength(pieceIndex)) {
+				return false;
+			}
+			if (this.hasPiece(this.peerID, pieceIndex)
+					|| !this.requestTracker.isBlockRequested(neighborPeerID, pieceIndex, offset, length)) {
+				return false;
+			}
+			if (this.writeBackStage != null) {
+				byte[] pieceBuffer = this.pieceBuffers.computeIfAbsent(pieceIndex, key -> new byte[this.getPieceLength(key)]);
+				block.duplicate().get(pieceBuffer, offset, length);
+			}
+			else {
+				this.pieceStore.writeBlock(pieceIndex, offset, block);
+			}
+			return this.requestTracker.blockReceived(pieceIndex, offset, length);
+		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
+		return false;
 	}
 
-	public synchronized byte[] readFromFile(int pieceIndex) {
+	public boolean isValidBlockRequest(int pieceIndex, int offset, int length) {
 		/*
-			This method is responsible for reading data from the given pieceIndex.
-			This process required random file access as a latter pieceIndex can
-			also be received.
+			A block can be requested only from a piece that the peer has and must lie
+			within the piece.
 		 */
-		try {
-			int pieceIdxPosition = this.getPieceSize() * pieceIndex;
-			int pieceSize = this.getPieceSize();
-
-			/*
-				If the piece required to be read is the last piece.
-				There is a possibility that the last piece can have the full piece size
-				or the remaining.
-			*/
-			if (pieceIndex == getPieceCount() - 1) {
-				pieceSize = getFileSize() % getPieceSize();
-			}
-			byte[] data = new byte[pieceSize];
-
-			// Seek the position and read the data.
-			this.randomFileAccessor.seek(pieceIdxPosition);
-			this.randomFileAccessor.read(data);
+		if (pieceIndex < 0 || pieceIndex >= this.pieceCount || !this.hasPiece(this.peerID, pieceIndex)) {
+			return false;
+		}
+		return offset >= 0 && length > 0 && (long) offset + length <= this.getPieceLength(pieceIndex);
+	}
 
-			return data;
-		} 
-		catch (Exception e) {
-			e.printStackTrace();
+	public FileRegion getBlockRegion(int pieceIndex, int offset, int length) {
+		/*
+			This method returns the file range of the given block, which is
+			transferred straight from the file channel to the socket of a neighbor.
+		 */
+		return this.pieceStore.getBlockRegion(pieceIndex, offset, length);
+	}
 
+	public int getPieceLength(int pieceIndex) {
+		/*
+			If the piece is the last piece, it can have the full piece size
+			or the remaining bytes of the file.
+		*/
+		if (pieceIndex == getPieceCount() - 1) {
+			return (int) (getFileSize() - (long) getPieceSize() * pieceIndex);
 		}
-
-		return new byte[0];
+		return getPieceSize();
 	}
 
 	public boolean hasFile() {
@@ -384,7 +796,7 @@ public class PeerAdmin {
 		return this.commonConfiguration.fileName;
 	}
 
-	public int getFileSize() {
+	public long getFileSize() {
 		return this.commonConfiguration.fileSize;
 	}
 
@@ -392,33 +804,119 @@ public class PeerAdmin {
 		return this.commonConfiguration.pieceSize;
 	}
 
+	public int getMaxFrameLength() {
+		/*
+			The largest message a neighbor can send is a piece message with a block
+			as large as a piece, or the bitfield of a file with many small pieces.
+			The type and the piece index and offset of a piece message are added.
+		 */
+		return 1 + 8 + Math.max(getPieceSize(), (this.calculateNumberOfPieces() + 7) / 8);
+	}
+
 	public int calculateNumberOfPieces() {
-		int numberOfPieces = (getFileSize() / getPieceSize());
+		long numberOfPieces = (getFileSize() / getPieceSize());
 		if (getFileSize() % getPieceSize() != 0) {
 			numberOfPieces += 1;
 		}
-		return numberOfPieces;
+		if (numberOfPieces > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("FileSize " + getFileSize() + " needs a larger PieceSize");
+		}
+		return (int) numberOfPieces;
 	}
 
 	public int getPieceCount() {
 		return this.pieceCount;
 	}
 
-	public synchronized RandomAccessFile getRandomFileAccessor() {
-		return this.randomFileAccessor;
+	public PieceStore getPieceStore() {
+		return this.pieceStore;
 	}
 
-	public synchronized void updatePieceAvailability(String peerID, int pieceIndex) {
-		this.availablePieces.get(peerID).set(pieceIndex);
+	public BitSet forcePieces() {
+		/*
+			This method forces the written pieces to disk before a checkpoint.
+
+			Returns the pieces of the peer whose data is on disk. A piece that the
+			write-back stage wrote after it was forced is left out.
+		 */
+		BitSet pieces = BitSet.valueOf(this.getBitFieldBytes());
+		try {
+			if (this.writeBackStage != null) {
+				this.writeBackStage.force();
+				pieces.andNot(this.writeBackStage.getUnforcedPieces());
+			}
+			else {
+				this.pieceStore.force();
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return pieces;
+	}
+
+	public void updatePieceAvailability(String peerID, int pieceIndex) {
+		/*
+			This method marks a piece as available for a peer and updates the missing
+			piece counts. A piece of a neighbor that the peer lacks adds to the count
+			of the neighbor, a piece of the peer itself is subtracted from the count
+			of every neighbor that has it.
+
+			A piece index outside the file is ignored before any state is touched, so
+			that a have message cannot count a neighbor as complete.
+		 */
+		if (pieceIndex < 0 || pieceIndex >= this.pieceCount) {
+			return;
+		}
+		synchronized (this.bitfieldLock) {
+			BitSet availability = this.availablePieces.get(peerID);
+			if (availability.get(pieceIndex)) {
+				return;
+			}
+			availability.set(pieceIndex);
+			this.completionTracker.pieceAdded(peerID);
+			if (!peerID.equals(this.peerID)) {
+				this.piecePicker.addPiece(pieceIndex);
+				if (!this.availablePieces.get(this.peerID).get(pieceIndex)) {
+					this.missingPieceCounts.get(peerID).incrementAndGet();
+				}
+				return;
+			}
+			// A block received after the piece was completed may have started a new buffer
+			this.pieceBuffers.remove(pieceIndex);
+			for (Map.Entry<String, AtomicInteger> missingPieceCount : this.missingPieceCounts.entrySet()) {
+				if (this.availablePieces.get(missingPieceCount.getKey()).get(pieceIndex)) {
+					missingPieceCount.getValue().decrementAndGet();
+				}
+			}
+		}
 	}
 
-	public synchronized void updateBitset(String peerID, BitSet bitSet) {
-		this.availablePieces.remove(peerID);
-		this.availablePieces.put(peerID, bitSet);
+	public void updateBitset(String peerID, BitSet bitSet) {
+		/*
+			The bitfield of the neighbor is replaced in place, so that the shared
+			bitset stays the same.
+		 */
+		synchronized (this.bitfieldLock) {
+			BitSet availability = this.availablePieces.computeIfAbsent(peerID, key -> new BitSet(this.pieceCount));
+			if (!peerID.equals(this.peerID)) {
+				this.piecePicker.removeBitfield(availability);
+				this.piecePicker.addBitfield(bitSet);
+			}
+			availability.clear();
+			availability.or(bitSet);
+			availability.clear(this.pieceCount, Math.max(this.pieceCount, availability.length()));
+			this.completionTracker.setAvailablePieceCount(peerID, availability.cardinality());
+			for (String neighborPeerID : this.missingPieceCounts.keySet()) {
+				if (peerID.equals(this.peerID) || peerID.equals(neighborPeerID)) {
+					this.recountMissingPieces(neighborPeerID);
+				}
+			}
+		}
 	}
 
 	public int getCompletedPieceCount() {
-		return this.availablePieces.get(this.peerID).cardinality();
+		return this.completionTracker.getAvailablePieceCount(this.peerID);
 	}
 
 	// Logger Utilities
@@ -429,43 +927,100 @@ public class PeerAdmin {
 
 	// Download Rate Utilities
 
-	public HashMap<String, Integer> getDownloadRatesOfPeers() {
+	public void sampleTransferRates() {
+		/*
+			This method samples the rate meters of every connected peer. It is
+			called once per unchoking interval, before the rates are compared.
+		 */
+		for (PeerUtils peerUtils : this.connectedPeers.values()) {
+			peerUtils.sampleTransferRates();
+		}
+	}
+
+	public HashMap<String, Double> getDownloadRatesOfPeers() {
 		/*
 			This method is responsible for fetching the download rates
 			of each peer and returning it.
 
-			Returns a hashmap of rates.
+			Returns a hashmap of rates in bytes per second.
 		 */
-		HashMap<String, Integer> downloadRates = new HashMap<>();
+		HashMap<String, Double> downloadRates = new HashMap<>();
 		for (String peerID : this.connectedPeers.keySet()) {
 			downloadRates.put(peerID, this.connectedPeers.get(peerID).getDownloadRate());
 		}
 		return downloadRates;
 	}
 
-	public synchronized void updateDownloadRate(String neighborPeerID) {
-		this.downloadRate.put(neighborPeerID, this.downloadRate.get(neighborPeerID) + 1);
+	public HashMap<String, Double> getUploadRatesOfPeers() {
+		/*
+			This method returns the rates in bytes per second at which the pieces
+			are uploaded to each peer.
+		 */
+		HashMap<String, Double> uploadRates = new HashMap<>();
+		for (String peerID : this.connectedPeers.keySet()) {
+			uploadRates.put(peerID, this.connectedPeers.get(peerID).getUploadRate());
+		}
+		return uploadRates;
+	}
+
+	public double getRateTimeConstant() {
+		/*
+			The rates are averaged over about two unchoking intervals.
+		 */
+		return 2.0 * Math.max(1, this.commonConfiguration.unchokingInterval);
 	}
 
 	// Destroy Peer Utilities
 
-	public synchronized void destroyPeer() {
+	public boolean destroyPeer() {
 		/*
 			This method is responsible for destroying all the components of a PeerAdmin
 			that are involved in the P2P File Sharing Process for successful termination
 			and memory leak prevention from files.
+
+			Only the first call destroys the peer, later calls return at once. The
+			components are destroyed on a thread of their own, without holding a lock:
+			stopping the write back stage waits for its writer, which may be running a
+			callback that calls this method, and stopping a scheduler from one of its
+			own threads would interrupt the rest of the teardown.
+
+			Returns true if this call destroys the peer.
 		 */
+		// Set first, so that uploads still in flight expect the piece store to close
+		if (!this.destroyPeer.compareAndSet(false, true)) {
+			return false;
+		}
+		this.threadFactory.newThread(this::destroyComponents).start();
+		return true;
+	}
+
+	private void destroyComponents() {
 		try {
 			this.getOptimisticNeighborScheduler().destroyScheduler();
 			this.getPreferredNeighborScheduler().destroyScheduler();
+			this.haveAnnouncer.destroyScheduler();
+			System.out.println("Peer " + this.peerID + ": " + this.getIdleWakeups() + " reader wakeups without a complete message");
+			if (this.pieceVerifier != null) {
+				this.pieceVerifier.destroyVerifier();
+				System.out.println("Peer " + this.peerID + ": " + this.pieceVerifier.getSummary());
+			}
 			this.emptyUnchokedPeerSet();
 			this.setOptimisticUnchokedPeer(null);
 			this.resetInterestedPeerSet();
-			this.getRandomFileAccessor().close();
+			if (this.writeBackStage != null) {
+				this.writeBackStage.destroyStage();
+				System.out.println("Peer " + this.peerID + ": " + this.writeBackStage.getSummary());
+			}
+			if (this.bitfieldCheckpoint != null) {
+				this.bitfieldCheckpoint.destroyScheduler();
+			}
+			if (this.pieceCache != null) {
+				System.out.println("Peer " + this.peerID + ": " + this.pieceCache.getSummary());
+			}
+			this.getPieceStore().close();
 			this.getLogger().deconstructLogger();
+			// Closing the listener releases the server thread blocked in accept()
 			this.getListener().close();
-			this.getServerThread().stop();
-			this.destroyPeer = true;
 			this.terminationScheduler.initializeScheduler(2);
 		}
 		catch (Exception e) {
@@ -473,11 +1028,11 @@ public class PeerAdmin {
 		}
 	}
 
-	public synchronized OptimisticNeighborScheduler getOptimisticNeighborScheduler() {
+	public OptimisticNeighborScheduler getOptimisticNeighborScheduler() {
 		return this.optimisticNeighborScheduler;
 	}
 
-	public synchronized PreferredNeighborScheduler getPreferredNeighborScheduler() {
+	public PreferredNeighborScheduler getPreferredNeighborScheduler() {
 		return this.preferredNeighborScheduler;
 	}
 
@@ -485,33 +1040,49 @@ public class PeerAdmin {
 		/*
 			This method is responsible for destroying all TCP Connections
 		 */
-		for (String peerID : this.connectedThreads.keySet()) {
-			this.connectedThreads.get(peerID).stop();
+		if (this.selector != null) {
+			this.selector.destroySelector();
+		}
+		for (PeerUtils peerUtils : this.connectedPeers.values()) {
+			peerUtils.closeConnection();
+		}
+		for (Thread thread : this.connectedThreads.values()) {
+			thread.interrupt();
+		}
+		this.terminationLatch.countDown();
+	}
+
+	public void awaitTermination() {
+		/*
+			This method blocks the caller until all TCP Connections are destroyed.
+			Virtual threads do not keep the JVM alive, so the main thread waits here.
+		 */
+		try {
+			this.terminationLatch.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
-	public synchronized ServerSocket getListener() {
+	public ServerSocket getListener() {
 		return this.listener;
 	}
 
-	public synchronized Thread getServerThread() {
+	public Thread getServerThread() {
 		return this.serverThread;
 	}
 
-	public synchronized Boolean isDestroyPeer() {
-		return this.destroyPeer;
+	public Boolean isDestroyPeer() {
+		return this.destroyPeer.get();
 	}
 
-	public synchronized boolean isDownloadCompleted() {
+	public boolean isDownloadCompleted() {
 		/*
 			This method returns if all the peers have downloaded all the available
-			pieces.
+			pieces. The completed peers are counted as the bitfields change, so the
+			check does not take the bitfield lock.
 		 */
-		for (String peerID : this.availablePieces.keySet()) {
-			if (this.availablePieces.get(peerID).cardinality() != this.pieceCount) {
-				return false;
-			}
-		}
-		return true;
+		return this.completionTracker.isCompleted();
 	}
 }
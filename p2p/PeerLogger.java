@@ -2,24 +2,79 @@ package p2p;
 
 import java.util.*;
 import java.io.*;
-import java.text.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.logging.FileHandler;
 import java.util.logging.SimpleFormatter;
 
 public class PeerLogger {
+    public static final int HANDSHAKE_RECEIVED = 1;
+    public static final int CONNECTION_INITIATED = 2;
+    public static final int CONNECTION_ESTABLISHED = 3;
+    public static final int BITFIELD_SENT = 4;
+    public static final int BITFIELD_RECEIVED = 5;
+    public static final int REQUEST_RECEIVED = 6;
+    public static final int PIECE_SENT = 7;
+    public static final int PREFERRED_NEIGHBORS_CHANGED = 8;
+    public static final int OPTIMISTIC_NEIGHBOR_CHANGED = 9;
+    public static final int UNCHOKED = 10;
+    public static final int CHOKED = 11;
+    public static final int HAVE_RECEIVED = 12;
+    public static final int INTERESTED_SENT = 13;
+    public static final int INTERESTED_RECEIVED = 14;
+    public static final int NOT_INTERESTED_SENT = 15;
+    public static final int NOT_INTERESTED_RECEIVED = 16;
+    public static final int PIECE_DOWNLOADED = 17;
+    public static final int DOWNLOAD_COMPLETED = 18;
+
+    private static final long WRITER_PARK_NANOS = 10_000_000L;
+    private static final int WRITER_BATCH_SIZE = 64 * 1024;
 
     private String peerID;
     private String fileName;
     private FileHandler fileHandler;
-    private SimpleDateFormat dateFormat = new SimpleDateFormat("MMM-dd-yyyy hh:mm:ss a");
+    private LogFormatter logFormatter;
     private Logger logger;
+    private StringBuilder syncLine;
+    private EventJournal eventJournal;
+    private LogRingBuffer ringBuffer;
+    private Writer asyncWriter;
+    private Thread writerThread;
+    private volatile boolean isWriterRunning;
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    public PeerLogger(String peerId, String logMode, int bufferSize, boolean isJournalEnabled) {
+        /*
+            This is the constructor for PeerLogger class. In the sync mode every event
+            is formatted and written through a FileHandler on the calling thread. In
+            the async mode the calling thread only puts a compact record of the event
+            into a ring buffer, and a writer thread formats the records and writes them
+            in batches. Both modes produce the same lines.
 
-    public PeerLogger(String peerId) {
+            If the journal is enabled, every event is also appended to the binary
+            journal peer_<id>.journal, which can be read with JournalReader.
+         */
         this.peerID = peerId;
         this.fileName = "peer_" + this.peerID + ".log";
+        this.logFormatter = new LogFormatter(this.peerID);
         try {
+            if (isJournalEnabled) {
+                this.eventJournal = new EventJournal(new File("peer_" + this.peerID + ".journal"), this.peerID);
+            }
+            if ("async".equalsIgnoreCase(logMode)) {
+                this.ringBuffer = new LogRingBuffer(bufferSize);
+                this.asyncWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.fileName, false)), WRITER_BATCH_SIZE);
+                this.isWriterRunning = true;
+                this.writerThread = new Thread(this::runWriter, "PeerLogger-" + this.peerID);
+                this.writerThread.setDaemon(true);
+                this.writerThread.start();
+                // The daemon writer would be stopped at exit with events still in the ring buffer
+                Runtime.getRuntime().addShutdownHook(new Thread(this::deconstructLogger));
+                return;
+            }
+            this.syncLine = new StringBuilder();
             this.fileHandler = new FileHandler(this.fileName, false);
             System.setProperty("java.util.logging.SimpleFormatter.format", "%5$s %n");
             this.fileHandler.setFormatter(new SimpleFormatter());
@@ -31,123 +86,190 @@ public class PeerLogger {
         }
     }
 
-    public synchronized void receivedHandshakeMessage(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] has received a handshake message from Peer " + "[" + neighborPeerID + "].");
+    private void log(int eventType, String neighborPeerID, int pieceIndex, int pieceCount, Object detail) {
+        if (this.eventJournal != null) {
+            this.eventJournal.append(eventType, neighborPeerID, pieceIndex, pieceCount);
+        }
+        this.write(eventType, neighborPeerID, pieceIndex, pieceCount, detail);
+    }
+
+    private void write(int eventType, String neighborPeerID, int pieceIndex, int pieceCount, Object detail) {
+        /*
+            This method writes an event to the text log. In the async mode it never
+            blocks, an event that does not fit in the ring buffer is dropped and
+            counted instead.
+         */
+        long timestamp = System.currentTimeMillis();
+        if (this.ringBuffer != null) {
+            if (!this.isWriterRunning) {
+                return;
+            }
+            this.ringBuffer.offer(timestamp, eventType, neighborPeerID, pieceIndex, pieceCount, detail);
+            return;
+        }
+        synchronized (this) {
+            if (this.logger == null) {
+                return;
+            }
+            this.syncLine.setLength(0);
+            this.logFormatter.format(timestamp, eventType, neighborPeerID, pieceIndex, pieceCount, detail, this.syncLine);
+            this.logger.log(Level.INFO, this.syncLine.toString());
+        }
+    }
+
+    private void runWriter() {
+        /*
+            This method is run by the writer thread. It drains the ring buffer into a
+            batch of formatted lines and writes the batch with a single flush. The
+            thread parks for a short interval when the buffer is empty, so the
+            producers never have to wake it up.
+         */
+        LogEvent event = new LogEvent();
+        StringBuilder batch = new StringBuilder(WRITER_BATCH_SIZE);
+        String lineSeparator = System.lineSeparator();
+        boolean isRunning = true;
+        while (isRunning) {
+            isRunning = this.isWriterRunning;
+            while (this.ringBuffer.poll(event)) {
+                this.logFormatter.format(event.timestamp, event.eventType, event.neighborPeerID,
+                        event.pieceIndex, event.pieceCount, event.detail, batch);
+                // Same layout as the "%5$s %n" format of the sync mode
+                batch.append(' ').append(lineSeparator);
+                if (batch.length() >= WRITER_BATCH_SIZE) {
+                    this.writeBatch(batch);
+                }
+            }
+            if (batch.length() > 0) {
+                this.writeBatch(batch);
+            }
+            else if (isRunning) {
+                LockSupport.parkNanos(WRITER_PARK_NANOS);
+            }
+        }
+    }
+
+    private void writeBatch(StringBuilder batch) {
+        try {
+            this.asyncWriter.append(batch);
+            this.asyncWriter.flush();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        batch.setLength(0);
+    }
+
+    private int getJournalPieceIndex(String pieceIndex) {
+        // The piece index is only parsed when it is written to the journal
+        return this.eventJournal == null ? 0 : EventJournal.parseNumber(pieceIndex);
     }
 
-    public synchronized void initiatedconnectionEstablishment(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] has initiated a TCP connection to Peer " + "[" + neighborPeerID + "].");
+    public long getDroppedEvents() {
+        return this.ringBuffer == null ? 0 : this.ringBuffer.getDroppedEvents();
     }
 
-    public synchronized void connectionEstablished(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] is connected to Peer " + "[" + neighborPeerID + "].");
+    public void receivedHandshakeMessage(String neighborPeerID) {
+        this.log(HANDSHAKE_RECEIVED, neighborPeerID, 0, 0, null);
     }
 
-    public synchronized void sentBitField(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] has sent its bitfield to Peer " + "[" + neighborPeerID + "].");
+    public void initiatedconnectionEstablishment(String neighborPeerID) {
+        this.log(CONNECTION_INITIATED, neighborPeerID, 0, 0, null);
     }
 
-    public synchronized void receivedBitField(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] has received a bitfield message from Peer " + "[" + neighborPeerID + "].");
+    public void connectionEstablished(String neighborPeerID) {
+        this.log(CONNECTION_ESTABLISHED, neighborPeerID, 0, 0, null);
     }
 
-    public synchronized void receivedRequestMessage(String neighborPeerID, String pieceIndex) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] has received a request message for piece [" + pieceIndex + "] from Peer " + "[" + neighborPeerID + "].");
+    public void sentBitField(String neighborPeerID) {
+        this.log(BITFIELD_SENT, neighborPeerID, 0, 0, null);
     }
 
-    public synchronized void sentPieceMessage(String neighborPeerID, String pieceIndex) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] has sent piece [" + pieceIndex + "] Peer " + "[" + neighborPeerID + "].");
+    public void receivedBitField(String neighborPeerID) {
+        this.log(BITFIELD_RECEIVED, neighborPeerID, 0, 0, null);
     }
 
-    public synchronized void preferredNeighborsChanged(List<String> neigbors) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] has the following preferred neighbors [" + neigbors.toString() + "].");
+    public void receivedRequestMessage(String neighborPeerID, String pieceIndex) {
+        this.log(REQUEST_RECEIVED, neighborPeerID, this.getJournalPieceIndex(pieceIndex), 0, pieceIndex);
     }
 
-    public synchronized void optimisticallyUnchokedNeighborChanged(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] has the following peer as optimistically unchoked neighbor [" + neighborPeerID + "].");
+    public void sentPieceMessage(String neighborPeerID, String pieceIndex) {
+        this.log(PIECE_SENT, neighborPeerID, this.getJournalPieceIndex(pieceIndex), 0, pieceIndex);
     }
 
-    public synchronized void unchokedNeighbor(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] is unchoked by [" + neighborPeerID + "].");
+    public void preferredNeighborsChanged(List<String> neigbors) {
+        if (this.eventJournal != null) {
+            this.eventJournal.appendNeighbors(PREFERRED_NEIGHBORS_CHANGED, neigbors);
+        }
+        this.write(PREFERRED_NEIGHBORS_CHANGED, null, 0, 0, neigbors.toString());
     }
 
-    public synchronized void chokedNeighbor(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] is choked by [" + neighborPeerID + "].");
+    public void optimisticallyUnchokedNeighborChanged(String neighborPeerID) {
+        this.log(OPTIMISTIC_NEIGHBOR_CHANGED, neighborPeerID, 0, 0, null);
     }
 
-    public synchronized void receivedHaveMessage(String neighborPeerID, int index) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] received a ‘have’ message from [" + neighborPeerID + "] for the piece [" + String.valueOf(index) + "].");
+    public void unchokedNeighbor(String neighborPeerID) {
+        this.log(UNCHOKED, neighborPeerID, 0, 0, null);
     }
 
-    public synchronized void sendInterestedMessage(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] sent an ‘interested’ message to [" + neighborPeerID + "].");
+    public void chokedNeighbor(String neighborPeerID) {
+        this.log(CHOKED, neighborPeerID, 0, 0, null);
     }
 
-    public synchronized void receivedInterestedMessage(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID + "] received an ‘interested’ message from [" + neighborPeerID + "].");
+    public void receivedHaveMessage(String neighborPeerID, int index) {
+        this.log(HAVE_RECEIVED, neighborPeerID, index, 0, null);
     }
 
-    public synchronized void sendNotInterestedMessage(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID
-                + "] sent a ‘not interested’ message to [" + neighborPeerID + "].");
+    public void sendInterestedMessage(String neighborPeerID) {
+        this.log(INTERESTED_SENT, neighborPeerID, 0, 0, null);
     }
 
-    public synchronized void receivedNotInterestedMessage(String neighborPeerID) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO, "[" + currTime + "]: Peer [" + this.peerID
-                + "] received the ‘not interested’ message from [" + neighborPeerID + "].");
+    public void receivedInterestedMessage(String neighborPeerID) {
+        this.log(INTERESTED_RECEIVED, neighborPeerID, 0, 0, null);
     }
 
-    public synchronized void downloadedPiece(String neighborPeerID, int ind, int pieces) {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO,
-                "[" + currTime + "]: Peer [" + this.peerID + "] has downloaded the piece [" + String.valueOf(ind)
-                        + "] from [" + neighborPeerID + "]. The number of pieces it has is [" + String.valueOf(pieces) + "].");
+    public void sendNotInterestedMessage(String neighborPeerID) {
+        this.log(NOT_INTERESTED_SENT, neighborPeerID, 0, 0, null);
     }
 
-    public synchronized void downloadCompleted() {
-        Calendar calendar = Calendar.getInstance();
-        String currTime = this.dateFormat.format(calendar.getTime());
-        this.logger.log(Level.INFO,
-                "[" + currTime + "]: Peer [" + this.peerID + "] has downloaded the complete file.");
+    public void receivedNotInterestedMessage(String neighborPeerID) {
+        this.log(NOT_INTERESTED_RECEIVED, neighborPeerID, 0, 0, null);
+    }
+
+    public void downloadedPiece(String neighborPeerID, int ind, int pieces) {
+        this.log(PIECE_DOWNLOADED, neighborPeerID, ind, pieces, null);
+    }
+
+    public void downloadCompleted() {
+        this.log(DOWNLOAD_COMPLETED, null, 0, 0, null);
     }
 
     public void deconstructLogger() {
+        /*
+            This method closes the log file. In the async mode the writer thread
+            drains the events that are still in the ring buffer before it exits. It
+            is also run by a shutdown hook, only the first call closes the log.
+         */
+        if (!this.isClosed.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            if (this.fileHandler != null) {
-                this.fileHandler.close();
+            if (this.eventJournal != null) {
+                this.eventJournal.close();
+            }
+            if (this.writerThread != null) {
+                this.isWriterRunning = false;
+                LockSupport.unpark(this.writerThread);
+                this.writerThread.join();
+                this.asyncWriter.close();
+                if (this.getDroppedEvents() > 0) {
+                    System.err.println("Peer " + this.peerID + " dropped " + this.getDroppedEvents() + " log events.");
+                }
+            }
+            synchronized (this) {
+                if (this.fileHandler != null) {
+                    this.fileHandler.close();
+                }
+                this.logger = null;
             }
         } 
         catch (Exception e) {
@@ -155,4 +277,12 @@ public class PeerLogger {
         }
     }
 
-}
\ No newline at end of file
+    static class LogEvent {
+        long timestamp;
+        int eventType;
+        String neighborPeerID;
+        int pieceIndex;
+        int pieceCount;
+        Object detail;
+    }
+}
@@ -0,0 +1,281 @@
+package p2p;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PeerSelector implements Runnable {
+    private static final int HANDSHAKE_LENGTH = 32;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private PeerAdmin peerAdmin;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Queue<Connection> pendingConnections;
+    private volatile boolean isFinished;
+    private int maxFrameLength;
+    private AtomicLong idleWakeups = new AtomicLong();
+
+    public PeerSelector(PeerAdmin peerAdmin) throws IOException {
+        /*
+            This is the constructor for PeerSelector class. A single selector thread
+            multiplexes the listening socket and every neighbor connection of the peer.
+         */
+        this.peerAdmin = peerAdmin;
+        this.selector = Selector.open();
+        this.pendingConnections = new ConcurrentLinkedQueue<>();
+        this.isFinished = false;
+        this.maxFrameLength = peerAdmin.getMaxFrameLength();
+    }
+
+    public ServerSocket bind(int port) throws IOException {
+        /*
+            This method opens the non-blocking listening channel for neighbor
+            connections. The returned ServerSocket is used by PeerAdmin for shutdown.
+         */
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        return this.serverChannel.socket();
+    }
+
+    public PeerUtils connect(String host, int port, String neighborPeerID) throws IOException {
+        /*
+            This method opens a TCP connection to a neighbor peer and hands it over
+            to the event loop. The connection is established in blocking mode so that
+            the startup order of the peers is kept as it is with the blocking transport.
+         */
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        return this.register(channel, neighborPeerID);
+    }
+
+    private PeerUtils register(SocketChannel channel, String neighborPeerID) throws IOException {
+        /*
+            The connection is fully set up before it is queued, the queue publishes
+            it to the event loop thread.
+         */
+        channel.configureBlocking(false);
+        PeerUtils peerUtils = new PeerUtils(channel, this, this.peerAdmin);
+        if (neighborPeerID != null) {
+            peerUtils.setNeighborPeerID(neighborPeerID);
+        }
+        Connection connection = new Connection(channel, peerUtils);
+        peerUtils.getOutboundQueue().add(ByteBuffer.wrap(peerUtils.getHandshakeMessage()));
+        this.pendingConnections.add(connection);
+        this.selector.wakeup();
+        return peerUtils;
+    }
+
+    public void requestWrite(SocketChannel channel) {
+        /*
+            This method asks the event loop to write the outbound queue of the given
+            channel. It can be called from any thread. A connection that is not
+            registered yet is registered with write interest.
+         */
+        SelectionKey key = channel.keyFor(this.selector);
+        if (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            this.selector.wakeup();
+        }
+    }
+
+    public void run() {
+        while (!this.isFinished) {
+            try {
+                if (this.selector.select() == 0) {
+                    this.idleWakeups.incrementAndGet();
+                }
+                this.registerPendingConnections();
+
+                Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            this.accept();
+                        }
+                        else {
+                            if (key.isReadable()) {
+                                this.read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                this.write(key);
+                            }
+                        }
+                    }
+                    catch (IOException e) {
+                        this.close(key);
+                    }
+                }
+            }
+            catch (ClosedSelectorException e) {
+                break;
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        this.closeAll();
+    }
+
+    private void registerPendingConnections() throws IOException {
+        Connection connection;
+        while ((connection = this.pendingConnections.peek()) != null) {
+            // Register before removing so that send() always finds the connection.
+            connection.channel.register(this.selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, connection);
+            this.pendingConnections.poll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.serverChannel.accept();
+        if (channel != null) {
+            this.register(channel, null);
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        /*
+            This method reads whatever is available on the channel and hands every
+            complete handshake or length prefixed message to the PeerUtils of the neighbor.
+            A read that does not complete a message is counted as an idle wakeup.
+         */
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(connection.inbound) == -1) {
+            throw new IOException("Connection closed by neighbor");
+        }
+
+        connection.inbound.flip();
+        int frameCount = 0;
+        while (true) {
+            if (!connection.isHandshakeReceived) {
+                if (connection.inbound.remaining() < HANDSHAKE_LENGTH) {
+                    break;
+                }
+                byte[] response = new byte[HANDSHAKE_LENGTH];
+                connection.inbound.get(response);
+                connection.isHandshakeReceived = true;
+                connection.peerUtils.processHandshakeResponse(response);
+            }
+            else {
+                if (connection.inbound.remaining() < 4) {
+                    break;
+                }
+                int responseLength = connection.inbound.getInt(connection.inbound.position());
+                if (responseLength < 1 || responseLength > this.maxFrameLength) {
+                    throw new IOException("Invalid message length " + responseLength);
+                }
+                if (connection.inbound.remaining() < 4 + responseLength) {
+                    // Grow the buffer if the message does not fit into it.
+                    if (connection.inbound.capacity() < 4 + responseLength) {
+                        ByteBuffer larger = ByteBuffer.allocate(4 + responseLength);
+                        larger.put(connection.inbound);
+                        connection.inbound = larger;
+                        this.idleWakeups.incrementAndGet();
+                        return;
+                    }
+                    break;
+                }
+                connection.inbound.getInt();
+                byte[] response = new byte[responseLength];
+                connection.inbound.get(response);
+                connection.peerUtils.processMessage(responseLength, response);
+                frameCount++;
+            }
+        }
+        if (frameCount == 0 && connection.isHandshakeReceived) {
+            this.idleWakeups.incrementAndGet();
+        }
+        connection.inbound.compact();
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        /*
+            This method writes the outbound queue of the connection until the socket
+            buffer is full. Write interest is removed once the queue is drained.
+         */
+        Connection connection = (Connection) key.attachment();
+        OutboundQueue outboundQueue = connection.peerUtils.getOutboundQueue();
+        if (!outboundQueue.writeTo((SocketChannel) key.channel())) {
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        // A message may have been queued after the queue was found empty.
+        if (!outboundQueue.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        try {
+            key.cancel();
+            key.channel().close();
+            if (key.attachment() != null) {
+                ((Connection) key.attachment()).peerUtils.connectionClosed();
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getIdleWakeups() {
+        /*
+            This method returns the number of times the event loop woke up
+            without any ready channel, or read from a channel without completing
+            a message.
+         */
+        return this.idleWakeups.get();
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : this.selector.keys()) {
+                key.channel().close();
+            }
+            this.selector.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void destroySelector() {
+        /*
+            This method stops the event loop. The neighbor connections are closed
+            by the event loop thread once it leaves the select loop.
+         */
+        this.isFinished = true;
+        this.selector.wakeup();
+    }
+
+    private static class Connection {
+        private SocketChannel channel;
+        private PeerUtils peerUtils;
+        private ByteBuffer inbound;
+        private boolean isHandshakeReceived;
+
+        Connection(SocketChannel channel, PeerUtils peerUtils) {
+            this.channel = channel;
+            this.peerUtils = peerUtils;
+            this.inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            this.isHandshakeReceived = false;
+        }
+    }
+}
@@ -22,13 +22,16 @@ public class PeerServer implements Runnable {
 			try {
 				Socket neighborConnection = this.listener.accept();
 				PeerUtils neighborPeerUtils = new PeerUtils(neighborConnection	, this.peerAdmin);
-				new Thread(neighborPeerUtils).start();
+				this.peerAdmin.getThreadFactory().newThread(neighborPeerUtils).start();
 			} 
 			catch (SocketException e) {
 				break;
 			} 
 			catch (Exception e) {
-				e.printStackTrace();
+				// The listener is closed when the peer is destroyed
+				if (!this.listener.isClosed()) {
+					e.printStackTrace();
+				}
 				break;
 			}
 		}
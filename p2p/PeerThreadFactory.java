@@ -0,0 +1,51 @@
+package p2p;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+public class PeerThreadFactory implements ThreadFactory {
+    private ThreadFactory threadFactory;
+    private boolean isVirtual;
+
+    public PeerThreadFactory(String threadMode) {
+        /*
+            This is the constructor for PeerThreadFactory class. In the virtual thread
+            mode, all connection and scheduler threads of a peer are virtual threads,
+            which are only available from JDK 21. On older JDKs the factory falls back
+            to platform threads.
+         */
+        this.threadFactory = Executors.defaultThreadFactory();
+        this.isVirtual = false;
+        if ("virtual".equalsIgnoreCase(threadMode)) {
+            try {
+                // Resolved reflectively so that the project still runs on a JDK without virtual threads
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                this.threadFactory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                                                          .getMethod("factory")
+                                                          .invoke(builder);
+                this.isVirtual = true;
+            }
+            catch (Exception e) {
+                System.err.println("Virtual threads are not supported by this JVM, using platform threads.");
+            }
+        }
+    }
+
+    public Thread newThread(Runnable runnable) {
+        return this.threadFactory.newThread(runnable);
+    }
+
+    public ScheduledExecutorService newScheduledExecutor() {
+        return Executors.newScheduledThreadPool(1, this.threadFactory);
+    }
+
+    public ExecutorService newFixedExecutor(int threadCount) {
+        return Executors.newFixedThreadPool(threadCount, this.threadFactory);
+    }
+
+    public boolean isVirtual() {
+        return this.isVirtual;
+    }
+}
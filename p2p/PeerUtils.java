@@ -1,24 +1,36 @@
 package p2p;
 
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.nio.*;
 import java.lang.*;
 
 public class PeerUtils implements Runnable {
-	private volatile int downloadRate = 0;
 	private String neighborPeerID;
 	private boolean isConnected = false;
-	private boolean isInitialized = false;
+	private volatile boolean isInitialized = false;
+	private volatile boolean isChoked = true;
+	private Set<BlockRequest> outstandingRequests = ConcurrentHashMap.newKeySet();
+	private final Object pendingHaveLock = new Object();
+	private int[] pendingHaves = new int[16];
+	private int pendingHaveCount = 0;
 	private Socket listener;
 	private PeerAdmin peerAdmin;
 	private HandshakeMessage handshakeMessage;
 	private PeerLogger logger;
-	private volatile ObjectOutputStream oos;
-	private volatile ObjectInputStream ois;
+	private OutboundQueue outboundQueue;
+	private RateMeter downloadMeter;
+	private RateMeter uploadMeter;
+	private Queue<BlockRequest> deferredUploads = new ConcurrentLinkedQueue<>();
+	private FrameReader frameReader;
+	private SocketChannel channel;
+	private PeerSelector selector;
 
 	public PeerUtils(Socket listener, PeerAdmin peerAdmin) {
 		/*
@@ -28,15 +40,35 @@ public class PeerUtils implements Runnable {
 		this.peerAdmin = peerAdmin;
 		try {
 			this.logger = peerAdmin.getLogger();
-			this.oos = new ObjectOutputStream(this.listener.getOutputStream());
-			this.ois = new ObjectInputStream(this.listener.getInputStream());
-			this.oos.flush();
+			this.listener.setTcpNoDelay(true);
+			this.frameReader = new FrameReader(this.listener.getInputStream(), peerAdmin.getMaxFrameLength());
 		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
 		this.handshakeMessage = new HandshakeMessage(this.peerAdmin.getPeerID());
+		this.downloadMeter = new RateMeter(peerAdmin.getRateTimeConstant());
+		this.uploadMeter = new RateMeter(peerAdmin.getRateTimeConstant());
+		// Uploads are counted once they are written, a congested neighbor does not inflate its rate
+		this.outboundQueue = new OutboundQueue(peerAdmin.getOutboundHighWatermark(), peerAdmin.getOutboundLowWatermark(),
+				this::resumeUploads, this.uploadMeter::record);
+	}
 
+	public PeerUtils(SocketChannel channel, PeerSelector selector, PeerAdmin peerAdmin) {
+		/*
+			This is the constructor used by the selector transport. The connection
+			is driven by the PeerSelector event loop instead of a dedicated thread.
+		 */
+		this.channel = channel;
+		this.selector = selector;
+		this.peerAdmin = peerAdmin;
+		this.logger = peerAdmin.getLogger();
+		this.handshakeMessage = new HandshakeMessage(this.peerAdmin.getPeerID());
+		this.downloadMeter = new RateMeter(peerAdmin.getRateTimeConstant());
+		this.uploadMeter = new RateMeter(peerAdmin.getRateTimeConstant());
+		// Uploads are counted once they are written, a congested neighbor does not inflate its rate
+		this.outboundQueue = new OutboundQueue(peerAdmin.getOutboundHighWatermark(), peerAdmin.getOutboundLowWatermark(),
+				this::resumeUploads, this.uploadMeter::record);
 	}
 	
 	public void setNeighborPeerID(String pid) {
@@ -46,184 +78,285 @@ public class PeerUtils implements Runnable {
 
 	public void run() {
 		try {
+			// Messages are written by a separate writer thread, so a slow neighbor only blocks its own writer
+			Thread writerThread = this.peerAdmin.getThreadFactory().newThread(this::runWriter);
+			writerThread.start();
 			byte[] handshakeMessage = this.handshakeMessage.constructHandshakeMessage();
-			this.oos.write(handshakeMessage);
-			this.oos.flush();
+			this.sendUtil(handshakeMessage);
 
 			while (true) {
 
 				if (!this.isConnected) {
 					byte[] response = new byte[32];
-					this.ois.readFully(response);
-					this.processHandshakeMessage(response);
-					if (this.peerAdmin.hasFile() || this.peerAdmin.getAvailablePieces(this.peerAdmin.getPeerID()).cardinality() > 0) {
-						this.sendBitFieldMessage();
-					}
+					this.frameReader.readFully(response, 0, response.length);
+					this.processHandshakeResponse(response);
 				} 
 				else {
-					while (this.ois.available() < 4) {
-						// Do nothing
-					}
-					int responseLength = this.ois.readInt();
-					byte[] response = new byte[responseLength];
-					this.ois.readFully(response);
-					char messageType = (char) response[0];
-
-					Message message = new Message();
-					message.setMessage(responseLength, response);
-
-					switch(messageType) {
-						case '0':
-							/*
-								Choke Message:
-								Remove neighbor from requested peer pieces info
-							*/
-							this.peerAdmin.resetRequestedPeerPieces(this.neighborPeerID);
-							logger.chokedNeighbor(this.neighborPeerID);
-							break;
+					// Blocks until a complete message has been received
+					byte[] response = this.frameReader.readFrame();
+					this.processMessage(response.length, response);
+				}
+			}
+		} catch (Exception e) {
+			// Closed connections are expected once the peer is terminating
+			if (!this.peerAdmin.isDestroyPeer()) {
+				e.printStackTrace();
+			}
+		}
+		this.connectionClosed();
+	}
 
-						case '1':
-							/*
-								Unchoke Message:
-								Check if any interested pieces are available with the neighbor
-								If neighbor sends interested message and the piece is present, unchoke neighbor
-								If piece not present, sendUtil not interested message.
-							*/
-							int requestedPieceIndex = this.peerAdmin.checkForRequestedPeerPieces(this.neighborPeerID);
-							if (requestedPieceIndex != -1) {
-								this.sendRequestMessage(requestedPieceIndex);
-								logger.unchokedNeighbor(this.neighborPeerID);
-							} else {
-								this.sendNotInterestedMessage();
-								logger.sendNotInterestedMessage(this.neighborPeerID);
-							}
-							break;
+	private void runWriter() {
+		/*
+			This method is run by the writer thread of a blocking connection. A failed
+			write closes the socket, which also ends the reader thread.
+		*/
+		try {
+			this.outboundQueue.runWriter(this.listener.getChannel());
+		}
+		catch (Exception e) {
+			if (!this.peerAdmin.isDestroyPeer()) {
+				e.printStackTrace();
+			}
+			this.closeConnection();
+		}
+	}
 
-						case '2':
-							/*
-								Interested Message:
-								Add neighbor peer ID to interested peer set
-							*/
-							this.peerAdmin.insertIntoInterestedPeerSet(this.neighborPeerID);
-							logger.receivedInterestedMessage(this.neighborPeerID);
-							break;
+	public void connectionClosed() {
+		/*
+			This method releases the pieces requested from the neighbor when the
+			connection is lost, so that they can be requested from other neighbors.
+		*/
+		this.outboundQueue.close();
+		this.deferredUploads.clear();
+		this.isChoked = true;
+		this.outstandingRequests.clear();
+		if (this.neighborPeerID != null) {
+			this.peerAdmin.resetRequestedPeerPieces(this.neighborPeerID);
+		}
+	}
 
-						case '3':
-							/*
-								Not Interested message:
-								Remove neighbor peer ID from interested peer set
-							*/
-							this.peerAdmin.removeFromInterestedPeerSet(this.neighborPeerID);
-							logger.receivedNotInterestedMessage(this.neighborPeerID);
-							break;
+	public int fillRequestPipeline() {
+		/*
+			This method keeps up to RequestPipelineSize block requests in flight to the
+			neighbor, so that the next block is already requested when a block arrives.
 
-						case '4':
-							/*
-								Have Message:
-								If neighbor has all pieces, destroy the connection
-								If peer is interested in any of the pieces of neighbor, sendUtil interested message
-								If not any, sendUtil not interested message.
-							*/
-							int pieceIndex = message.getPieceIndexFromPayload();
-							this.peerAdmin.updatePieceAvailability(this.neighborPeerID, pieceIndex);
-							if (this.peerAdmin.isDownloadCompleted()) {
-								this.peerAdmin.destroyPeer();
-							}
-							if (this.peerAdmin.checkIfInterested(this.neighborPeerID)) {
-								logger.receivedHaveMessage(this.neighborPeerID, pieceIndex);
-								this.sendInterestedMessage();
-								logger.sendInterestedMessage(this.neighborPeerID);
-							}
-							else {
-								this.sendNotInterestedMessage();
-								logger.sendNotInterestedMessage(this.neighborPeerID);
-							}
-							break;
+			Returns the number of new requests sent.
+		*/
+		int requestCount = 0;
+		while (!this.isChoked && this.outstandingRequests.size() < this.peerAdmin.getRequestPipelineSize()) {
+			BlockRequest request = this.peerAdmin.checkForRequestedBlock(this.neighborPeerID);
+			if (request == null) {
+				break;
+			}
+			this.outstandingRequests.add(request);
+			this.sendRequestMessage(request);
+			requestCount++;
+		}
+		return requestCount;
+	}
 
-						case '5':
-							/*
-								Bitfield Message:
-								Update the available pieces
-								If interested in any pieces, peer sends interested message
-								Else sends not interested message
-							*/
-							BitSet bitSet = message.getBitFieldMessage();
-							this.processBitFieldMessage(bitSet);
-							logger.receivedBitField(this.neighborPeerID);
-							if (!this.peerAdmin.hasFile()) {
-								if (this.peerAdmin.checkIfInterested(this.neighborPeerID)) {
-									this.sendInterestedMessage();
-									logger.sendInterestedMessage(this.neighborPeerID);
-								}
-								else {
-									this.sendNotInterestedMessage();
-									logger.sendNotInterestedMessage(this.neighborPeerID);
-								}
-							}
-							break;
+	public void processHandshakeResponse(byte[] response) {
+		/*
+			This method is responsible for processing the handshake received from
+			the neighbor and sending the bit field of the peer if it has any pieces.
+		*/
+		this.processHandshakeMessage(response);
+		if (this.peerAdmin.hasFile() || this.peerAdmin.getCompletedPieceCount() > 0) {
+			this.sendBitFieldMessage();
+		}
+	}
 
-						case '6':
-							/*
-								If neighbor peer is in unchoked peers set or if neighbor peer is an
-								optimistically unchoked peer, then accept the request message. Else discard the
-								message.
-							*/
-							if (this.peerAdmin.getUnchokedPeerSet().contains(this.neighborPeerID)
-									|| (this.peerAdmin.getOptimisticUnchokedPeer() != null && this.peerAdmin.getOptimisticUnchokedPeer().compareTo(this.neighborPeerID) == 0)) {
-								pieceIndex = message.getPieceIndexFromPayload();
-								logger.receivedRequestMessage(this.neighborPeerID, String.valueOf(pieceIndex));
-								this.sendPieceMessage(pieceIndex, this.peerAdmin.readFromFile(pieceIndex));
-								logger.sentPieceMessage(this.neighborPeerID, String.valueOf(pieceIndex));
-							}
-							break;
+	public void processMessage(int responseLength, byte[] response) {
+		/*
+			This method is responsible for handling a single message received from
+			the neighbor. It is shared by the blocking and the selector transports.
+		*/
+		try {
+			char messageType = (char) response[0];
+
+			Message message = new Message();
+			message.setMessage(responseLength, response);
+
+			switch(messageType) {
+				case '0':
+					/*
+						Choke Message:
+						Remove neighbor from requested peer pieces info
+					*/
+					this.isChoked = true;
+					this.outstandingRequests.clear();
+					this.peerAdmin.resetRequestedPeerPieces(this.neighborPeerID);
+					logger.chokedNeighbor(this.neighborPeerID);
+					break;
+
+				case '1':
+					/*
+						Unchoke Message:
+						Check if any interested pieces are available with the neighbor
+						If neighbor sends interested message and the piece is present, unchoke neighbor
+						and fill the request pipeline.
+						If piece not present, sendUtil not interested message.
+					*/
+					this.isChoked = false;
+					this.fillRequestPipeline();
+					if (!this.outstandingRequests.isEmpty()) {
+						logger.unchokedNeighbor(this.neighborPeerID);
+					} else {
+						this.sendNotInterestedMessage();
+						logger.sendNotInterestedMessage(this.neighborPeerID);
+					}
+					break;
+
+				case '2':
+					/*
+						Interested Message:
+						Add neighbor peer ID to interested peer set
+					*/
+					this.peerAdmin.insertIntoInterestedPeerSet(this.neighborPeerID);
+					logger.receivedInterestedMessage(this.neighborPeerID);
+					break;
+
+				case '3':
+					/*
+						Not Interested message:
+						Remove neighbor peer ID from interested peer set
+					*/
+					this.peerAdmin.removeFromInterestedPeerSet(this.neighborPeerID);
+					logger.receivedNotInterestedMessage(this.neighborPeerID);
+					break;
+
+				case '4':
+					/*
+						Have Message:
+						If neighbor has all pieces, destroy the connection
+						If peer is interested in any of the pieces of neighbor, sendUtil interested message
+						If not any, sendUtil not interested message.
+					*/
+					int pieceIndex = message.getPieceIndexFromPayload();
+					this.peerAdmin.updatePieceAvailability(this.neighborPeerID, pieceIndex);
+					if (this.peerAdmin.isDownloadCompleted()) {
+						this.peerAdmin.destroyPeer();
+					}
+					if (this.peerAdmin.checkIfInterested(this.neighborPeerID)) {
+						logger.receivedHaveMessage(this.neighborPeerID, pieceIndex);
+						this.sendInterestedMessage();
+						logger.sendInterestedMessage(this.neighborPeerID);
+						this.fillRequestPipeline();
+					}
+					else {
+						this.sendNotInterestedMessage();
+						logger.sendNotInterestedMessage(this.neighborPeerID);
+					}
+					break;
+
+				case '5':
+					/*
+						Bitfield Message:
+						Update the available pieces
+						If interested in any pieces, peer sends interested message
+						Else sends not interested message
+					*/
+					BitSet bitSet = message.getBitFieldMessage();
+					this.processBitFieldMessage(bitSet);
+					logger.receivedBitField(this.neighborPeerID);
+					if (!this.peerAdmin.hasFile()) {
+						if (this.peerAdmin.checkIfInterested(this.neighborPeerID)) {
+							this.sendInterestedMessage();
+							logger.sendInterestedMessage(this.neighborPeerID);
+						}
+						else {
+							this.sendNotInterestedMessage();
+							logger.sendNotInterestedMessage(this.neighborPeerID);
+						}
+					}
+					break;
+
+				case '6':
+					/*
+						Request Message:
+						If neighbor peer is in unchoked peers set or if neighbor peer is an
+						optimistically unchoked peer, then accept the request message. Else discard the
+						message. A request asks for a block (offset and length) of a piece.
+					*/
+					if (this.peerAdmin.getUnchokedPeerSet().contains(this.neighborPeerID)
+							|| (this.peerAdmin.getOptimisticUnchokedPeer() != null && this.peerAdmin.getOptimisticUnchokedPeer().compareTo(this.neighborPeerID) == 0)) {
+						pieceIndex = message.getPieceIndexFromPayload();
+						int blockOffset = message.getBlockOffsetFromPayload();
+						int blockLength = message.getBlockLengthFromPayload();
+						if (this.peerAdmin.isValidBlockRequest(pieceIndex, blockOffset, blockLength)) {
+							logger.receivedRequestMessage(this.neighborPeerID, String.valueOf(pieceIndex));
+							// The upload waits while the neighbor is not reading what was already sent
+							this.deferredUploads.add(new BlockRequest(pieceIndex, blockOffset, blockLength));
+							this.resumeUploads();
+						}
+					}
+					break;
+
+				case '7':
+					/*
+						Piece Message:
+						Write the block in place into its piece. If the piece is complete, update
+						the piece availability and announce availability of the piece, after its
+						hash is verified if piece verification is enabled.
+						Refill the request pipeline, if nothing is left to request sendUtil not interested message
+						If all pieces are downloaded, destroy the connection.
+					 */
+					pieceIndex = message.getPieceIndexFromPayload();
+					int blockOffset = message.getBlockOffsetFromPayload();
+					ByteBuffer block = message.getBlockFromPayload();
+					BlockRequest receivedBlock = new BlockRequest(pieceIndex, blockOffset, block.remaining());
+					this.outstandingRequests.remove(receivedBlock);
+					this.peerAdmin.cancelDuplicateRequests(this.neighborPeerID, receivedBlock);
+					this.downloadMeter.record(block.remaining());
+					// Blocks that arrive once the peer is destroyed are discarded, the piece store is closing
+					if (this.peerAdmin.isDestroyPeer()) {
+						break;
+					}
 
-						case '7':
-							/*
-								Piece Message:
-								Write the piece to the file and update the piece availability.
-								Announce availability of the piece
-								Check for other piece, if required sendUtil interested message or sendUtil not interested message
-								If all pieces are downloaded, destroy the connection.
-							 */
-							pieceIndex = message.getPieceIndexFromPayload();
-							byte[] piece = message.getPieceFromPayload();
-							
-							this.peerAdmin.writeToFile(piece, pieceIndex);
-							this.peerAdmin.updatePieceAvailability(this.peerAdmin.getPeerID(), pieceIndex);
-							this.downloadRate++;
-							
-							Boolean isCompleted = this.peerAdmin.isDownloadCompleted();
-							logger.downloadedPiece(this.neighborPeerID, pieceIndex, this.peerAdmin.getCompletedPieceCount());
-							this.peerAdmin.setRequestedPeerPieces(pieceIndex, null);
-							this.peerAdmin.announcePieceAvailability(pieceIndex);
-
-							if (this.peerAdmin.getAvailablePieces(this.peerAdmin.getPeerID()).cardinality() != this.peerAdmin.getPieceCount()) {
-								requestedPieceIndex = this.peerAdmin.checkForRequestedPeerPieces(this.neighborPeerID);
-								if (requestedPieceIndex != -1) {
-									this.sendRequestMessage(requestedPieceIndex);
-									logger.sendInterestedMessage(neighborPeerID);
-								}
-								else {
-									this.sendNotInterestedMessage();
-									logger.sendNotInterestedMessage(neighborPeerID);
-								}
-							}
-							else {
-								logger.downloadCompleted();
-								if (isCompleted) {
-									this.peerAdmin.destroyPeer();
-								}
-								this.sendNotInterestedMessage();
-								logger.sendNotInterestedMessage(neighborPeerID);
-							}
+					boolean isPieceCompleted = this.peerAdmin.writeBlock(this.neighborPeerID, pieceIndex, blockOffset, block);
+					if (isPieceCompleted) {
+						if (this.peerAdmin.isPieceCompletionProcessed()) {
+							// The piece is marked once it is verified, written back and cached, as configured
+							int completedPieceIndex = pieceIndex;
+							this.peerAdmin.processCompletedPiece(completedPieceIndex, () -> this.markPieceCompleted(completedPieceIndex));
+						}
+						else if (this.markPieceCompleted(pieceIndex)) {
 							break;
+						}
+					}
 
-						default:
-							break;
+					// A block can still arrive after a choke, the neighbor discards requests until it unchokes again
+					if (this.isChoked) {
+						break;
 					}
-				}
+					if (this.fillRequestPipeline() > 0) {
+						if (isPieceCompleted) {
+							logger.sendInterestedMessage(neighborPeerID);
+						}
+					}
+					else if (this.outstandingRequests.isEmpty()) {
+						this.sendNotInterestedMessage();
+						logger.sendNotInterestedMessage(neighborPeerID);
+					}
+					break;
+
+				case '8':
+					/*
+						Cancel Message:
+						The neighbor received the block from another peer in the endgame.
+						Drop the upload if it is still deferred, an upload that is already
+						queued is sent anyway.
+					*/
+					pieceIndex = message.getPieceIndexFromPayload();
+					this.deferredUploads.remove(new BlockRequest(pieceIndex, message.getBlockOffsetFromPayload(), message.getBlockLengthFromPayload()));
+					break;
+
+				default:
+					break;
 			}
-		} catch (Exception e) {
+		}
+		catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
@@ -239,7 +372,9 @@ public class PeerUtils implements Runnable {
 			this.neighborPeerID = this.handshakeMessage.getPeerID();
 			logger.receivedHandshakeMessage(this.neighborPeerID);
 			this.peerAdmin.putConnectedPeer(this, this.neighborPeerID);
-			this.peerAdmin.putConnectedThreads(this.neighborPeerID, Thread.currentThread());
+			if (this.channel == null) {
+				this.peerAdmin.putConnectedThreads(this.neighborPeerID, Thread.currentThread());
+			}
 			this.isConnected = true;
 			if (this.isInitialized) {
 				logger.initiatedconnectionEstablishment(this.neighborPeerID);
@@ -258,9 +393,8 @@ public class PeerUtils implements Runnable {
 			This method is responsible for sending the bit field of a peer.
 		*/
 		try {
-			BitSet myAvailability = this.peerAdmin.getAvailablePieces(this.peerAdmin.getPeerID());
-			Message message = new Message('5', myAvailability.toByteArray());
-			this.sendUtil(message.constructMessage());
+			Message message = new Message('5', this.peerAdmin.getBitFieldBytes());
+			this.sendUtil(message);
 			logger.sentBitField(this.neighborPeerID);
 		}
 		catch (Exception e) {
@@ -268,14 +402,17 @@ public class PeerUtils implements Runnable {
 		}
 	}
 
-	public void sendRequestMessage(int pieceIndex) {
+	public void sendRequestMessage(BlockRequest request) {
 		/*
-			This method is responsible for sending a request message
+			This method is responsible for sending a request message for a block
 		*/
 		try {
-			byte[] bytes = ByteBuffer.allocate(4).putInt(pieceIndex).array();
+			byte[] bytes = ByteBuffer.allocate(12).putInt(request.getPieceIndex())
+										.putInt(request.getOffset())
+										.putInt(request.getLength())
+										.array();
 			Message message = new Message('6', bytes);
-			this.sendUtil(message.constructMessage());
+			this.sendUtil(message);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
@@ -288,7 +425,7 @@ public class PeerUtils implements Runnable {
 		*/
 		try {
 			Message message = new Message('3');
-			this.sendUtil(message.constructMessage());
+			this.sendUtil(message);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
@@ -301,7 +438,7 @@ public class PeerUtils implements Runnable {
 		*/
 		try {
 			Message message = new Message('2');
-			this.sendUtil(message.constructMessage());
+			this.sendUtil(message);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
@@ -315,17 +452,83 @@ public class PeerUtils implements Runnable {
 		this.peerAdmin.updateBitset(this.neighborPeerID, bitSet);
 	}
 
-	public void sendPieceMessage(int pieceIndex, byte[] payload) {
+	public synchronized void resumeUploads() {
+		/*
+			This method sends the deferred piece uploads until the outbound queue is
+			congested again. It is run when a request arrives and when the queue
+			drains below its low watermark.
+		*/
+		BlockRequest request;
+		while (!this.outboundQueue.isCongested() && (request = this.deferredUploads.poll()) != null) {
+			this.sendPieceMessage(request.getPieceIndex(), request.getOffset(), request.getLength());
+			logger.sentPieceMessage(this.neighborPeerID, String.valueOf(request.getPieceIndex()));
+		}
+	}
+
+	public void sendPieceMessage(int pieceIndex, int offset, int length) {
+		/*
+			This method is responsible for sending a piece message with a block of the
+			piece, without copying the block into the heap. The header, the piece index
+			and the offset are written first and the block is transferred from the file
+			channel to the socket. With the piece cache, the block is sent from the
+			cached piece instead.
+		*/
+		try {
+			byte[] bytes = ByteBuffer.allocate(8).putInt(pieceIndex).putInt(offset).array();
+			ByteBuffer header = MessageCodec.encodeHeader('7', bytes.length + length);
+			if (this.peerAdmin.isPieceCacheEnabled()) {
+				this.send(header, ByteBuffer.wrap(bytes), new FileRegion(this.peerAdmin.getCachedBlock(pieceIndex, offset, length)));
+			}
+			else {
+				this.send(header, ByteBuffer.wrap(bytes), this.peerAdmin.getBlockRegion(pieceIndex, offset, length));
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public boolean markPieceCompleted(int pieceIndex) {
 		/*
-			This method is responsible for sending a piece message
+			This method marks a completed piece as available for the peer and
+			announces it. If it is the last piece, the neighbor is told that the
+			peer is not interested anymore.
+
+			Returns true if the download is complete.
+		*/
+		this.peerAdmin.updatePieceAvailability(this.peerAdmin.getPeerID(), pieceIndex);
+
+		Boolean isCompleted = this.peerAdmin.isDownloadCompleted();
+		logger.downloadedPiece(this.neighborPeerID, pieceIndex, this.peerAdmin.getCompletedPieceCount());
+		this.peerAdmin.announcePieceAvailability(pieceIndex);
+
+		if (this.peerAdmin.getCompletedPieceCount() == this.peerAdmin.getPieceCount()) {
+			logger.downloadCompleted();
+			if (isCompleted) {
+				this.peerAdmin.destroyPeer();
+			}
+			this.sendNotInterestedMessage();
+			logger.sendNotInterestedMessage(neighborPeerID);
+			return true;
+		}
+		return false;
+	}
+
+	public void sendCancelMessage(BlockRequest request) {
+		/*
+			This method is responsible for cancelling a block request that was
+			sent in the endgame and has been received from another neighbor.
 		*/
 		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			byte[] bytes = ByteBuffer.allocate(4).putInt(pieceIndex).array();
-			baos.write(bytes);
-			baos.write(payload);
-			Message message = new Message('7', baos.toByteArray());
-			this.sendUtil(message.constructMessage());
+			if (!this.outstandingRequests.remove(request)) {
+				return;
+			}
+			byte[] bytes = ByteBuffer.allocate(12).putInt(request.getPieceIndex())
+										.putInt(request.getOffset())
+										.putInt(request.getLength())
+										.array();
+			Message message = new Message('8', bytes);
+			this.sendUtil(message);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
@@ -338,7 +541,7 @@ public class PeerUtils implements Runnable {
 		*/
 		try {
 			Message message = new Message('0');
-			this.sendUtil(message.constructMessage());
+			this.sendUtil(message);
 		} 
 		catch (Exception e) {
 			e.printStackTrace();
@@ -351,46 +554,143 @@ public class PeerUtils implements Runnable {
 		*/
 		try {
 			Message message = new Message('1');
-			this.sendUtil(message.constructMessage());
+			this.sendUtil(message);
 		} 
 		catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
-	public void sendHaveMessage(int pieceIndex) {
+	public int queueHaveMessage(int pieceIndex) {
+		/*
+			This method queues a have message until the next flush.
+
+			Returns the number of pending have messages.
+		*/
+		synchronized (this.pendingHaveLock) {
+			if (this.pendingHaveCount == this.pendingHaves.length) {
+				this.pendingHaves = Arrays.copyOf(this.pendingHaves, this.pendingHaveCount * 2);
+			}
+			this.pendingHaves[this.pendingHaveCount++] = pieceIndex;
+			return this.pendingHaveCount;
+		}
+	}
+
+	public void flushHaveMessages() {
 		/*
-			This method is responsible for sending a have message
+			This method is responsible for sending the pending have messages. They are
+			encoded back to back and sent with a single write.
 		*/
 		try {
-			byte[] bytes = ByteBuffer.allocate(4).putInt(pieceIndex).array();
-			Message message = new Message('4', bytes);
-			this.sendUtil(message.constructMessage());
-		} 
+			ByteBuffer bytes;
+			synchronized (this.pendingHaveLock) {
+				if (this.pendingHaveCount == 0) {
+					return;
+				}
+				bytes = ByteBuffer.allocate(this.pendingHaveCount * (MessageCodec.HEADER_LENGTH + 4));
+				for (int index = 0; index < this.pendingHaveCount; index++) {
+					bytes.putInt(5).put((byte) '4').putInt(this.pendingHaves[index]);
+				}
+				this.pendingHaveCount = 0;
+			}
+			this.sendUtil(bytes.array());
+		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
-	public synchronized void sendUtil(byte[] obj) {
+	public void sendUtil(byte[] obj) {
 		/*
-			This method is responsible for writing the message to the stream.
+			This method is responsible for sending already encoded bytes.
+		*/
+		this.send(ByteBuffer.wrap(obj));
+	}
+
+	public void sendUtil(Message message) {
+		this.sendUtil(message.getMessageType(), message.getMessagePayload());
+	}
+
+	public void sendUtil(char messageType, byte[]... payload) {
+		/*
+			This method is responsible for sending a message. The header and the
+			payload parts are queued separately so the payload is not copied.
+		*/
+		ByteBuffer[] buffers = new ByteBuffer[payload.length + 1];
+		buffers[0] = MessageCodec.encodeHeader(messageType, payload);
+		for (int index = 0; index < payload.length; index++) {
+			buffers[index + 1] = ByteBuffer.wrap(payload[index]);
+		}
+		this.send((Object[]) buffers);
+	}
+
+	private void send(Object... message) {
+		/*
+			This method queues a message on the outbound queue of the connection. The
+			caller never writes to the socket itself, the queue is drained by the
+			writer thread or by the selector thread.
+		*/
+		this.outboundQueue.add(message);
+		if (this.channel != null) {
+			this.selector.requestWrite(this.channel);
+		}
+	}
+
+	public OutboundQueue getOutboundQueue() {
+		return this.outboundQueue;
+	}
+
+	public byte[] getHandshakeMessage() {
+		return this.handshakeMessage.constructHandshakeMessage();
+	}
+
+	public void closeConnection() {
+		/*
+			This method closes the socket of the connection, which also releases
+			the reader thread if it is blocked waiting for a message.
 		*/
 		try {
-			this.oos.write(obj);
-			this.oos.flush();
+			if (this.listener != null) {
+				this.listener.close();
+			}
 		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
-	public int getDownloadRate() {
-		return this.downloadRate;
+	public long getIdleWakeups() {
+		/*
+			This method returns the number of times the reader thread of this
+			connection woke up without a complete message being available. The
+			connections of the selector transport are counted by the PeerSelector.
+		*/
+		return this.frameReader != null ? this.frameReader.getIdleWakeups() : 0;
+	}
+
+	public void sampleTransferRates() {
+		/*
+			This method folds the bytes received from and sent to the neighbor since
+			the previous sample into the download and upload rates.
+		*/
+		this.downloadMeter.sample();
+		this.uploadMeter.sample();
+	}
+
+	public double getDownloadRate() {
+		return this.downloadMeter.getRate();
+	}
+
+	public double getUploadRate() {
+		return this.uploadMeter.getRate();
+	}
+
+	public long getDownloadedBytes() {
+		return this.downloadMeter.getTotalBytes();
 	}
 
-	public void resetDownloadRate() {
-		this.downloadRate = 0;
+	public long getUploadedBytes() {
+		return this.uploadMeter.getTotalBytes();
 	}
 
 }
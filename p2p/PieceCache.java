@@ -0,0 +1,84 @@
+package p2p;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PieceCache {
+    private LinkedHashMap<Integer, ByteBuffer> pieces;
+    private long capacity;
+    private boolean isDirect;
+    private long cachedBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    public PieceCache(long capacity, boolean isDirect) {
+        /*
+            This is the constructor for PieceCache class. It keeps the most recently
+            used pieces in memory, up to the given number of bytes, so that a piece
+            requested by several neighbors is read from disk once. The least
+            recently used pieces are evicted first.
+
+            Direct pieces are kept off the heap and are written to the sockets
+            without being copied into a temporary direct buffer first.
+         */
+        this.pieces = new LinkedHashMap<>(16, 0.75f, true);
+        this.capacity = capacity;
+        this.isDirect = isDirect;
+    }
+
+    public synchronized ByteBuffer get(int pieceIndex) {
+        /*
+            Returns a read-only view of the cached piece, or null if it is not cached.
+         */
+        ByteBuffer piece = this.pieces.get(pieceIndex);
+        if (piece == null) {
+            this.missCount++;
+            return null;
+        }
+        this.hitCount++;
+        return piece.asReadOnlyBuffer();
+    }
+
+    public void put(int pieceIndex, byte[] data) {
+        /*
+            This method caches a piece and evicts the least recently used pieces
+            until the cache fits its capacity. The data of a heap cache is kept as
+            it is, so it must not be modified afterwards. A piece larger than the
+            cache is not cached.
+         */
+        if (data.length > this.capacity) {
+            return;
+        }
+        ByteBuffer piece = ByteBuffer.wrap(data);
+        if (this.isDirect) {
+            piece = ByteBuffer.allocateDirect(data.length).put(piece).flip();
+        }
+        synchronized (this) {
+            ByteBuffer previousPiece = this.pieces.put(pieceIndex, piece);
+            if (previousPiece != null) {
+                this.cachedBytes -= previousPiece.capacity();
+            }
+            this.cachedBytes += piece.capacity();
+            Iterator<Map.Entry<Integer, ByteBuffer>> iterator = this.pieces.entrySet().iterator();
+            while (this.cachedBytes > this.capacity && iterator.hasNext()) {
+                Map.Entry<Integer, ByteBuffer> eldest = iterator.next();
+                if (eldest.getKey() == pieceIndex) {
+                    continue;
+                }
+                this.cachedBytes -= eldest.getValue().capacity();
+                iterator.remove();
+                this.evictionCount++;
+            }
+        }
+    }
+
+    public synchronized String getSummary() {
+        long requestCount = this.hitCount + this.missCount;
+        return String.format("piece cache %d hits, %d misses (%.1f%% hits), %d evictions, %d pieces cached",
+                this.hitCount, this.missCount, requestCount == 0 ? 0 : 100.0 * this.hitCount / requestCount,
+                this.evictionCount, this.pieces.size());
+    }
+}
@@ -0,0 +1,223 @@
+package p2p;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class PieceHashes {
+    public static final int MAGIC = 0x50485332;
+    private static final int MIN_TASK_BYTES = 4 << 20;
+
+    private String algorithm;
+    private long fileSize;
+    private long lastModified;
+    private int pieceSize;
+    private int pieceCount;
+    private int digestLength;
+    private byte[] hashes;
+
+    public PieceHashes(String algorithm, long fileSize, long lastModified, int pieceSize, byte[] hashes) {
+        /*
+            This is the constructor for PieceHashes class. It holds the digest of
+            every piece of the shared file, stored back to back, which the received
+            pieces are verified against. The modification time of the hashed file is
+            kept, so that the hashes are reused until the file changes.
+         */
+        this.algorithm = algorithm;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.pieceSize = pieceSize;
+        this.pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+        this.digestLength = this.pieceCount == 0 ? 0 : hashes.length / this.pieceCount;
+        this.hashes = hashes;
+    }
+
+    public static PieceHashes loadOrGenerate(File file, File metadataFile, String algorithm, long fileSize, int pieceSize) throws IOException, NoSuchAlgorithmException {
+        /*
+            This method returns the hashes of the file from the metadata file if it
+            was generated from the same file, with the same size, modification time,
+            piece size and algorithm. Otherwise the file is hashed again and the
+            metadata file is replaced.
+         */
+        if (metadataFile.exists()) {
+            try {
+                PieceHashes pieceHashes = read(metadataFile);
+                if (pieceHashes.algorithm.equalsIgnoreCase(algorithm) && pieceHashes.fileSize == fileSize
+                        && pieceHashes.pieceSize == pieceSize && pieceHashes.isGeneratedFrom(file)) {
+                    return pieceHashes;
+                }
+            }
+            catch (IOException e) {
+                // An unreadable metadata file is generated again
+            }
+        }
+        PieceHashes pieceHashes = generate(file, algorithm, fileSize, pieceSize);
+        pieceHashes.write(metadataFile);
+        return pieceHashes;
+    }
+
+    public static PieceHashes generate(File file, String algorithm, long fileSize, int pieceSize) throws IOException, NoSuchAlgorithmException {
+        /*
+            This method hashes every piece of the file. The pieces are split into
+            ranges of a few megabytes that are memory-mapped and hashed in parallel
+            on the common fork-join pool, so that hashing a large file is bounded by
+            the disk rather than by a single core.
+         */
+        int digestLength = MessageDigest.getInstance(algorithm).getDigestLength();
+        int pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+        byte[] hashes = new byte[pieceCount * digestLength];
+        long lastModified = file.lastModified();
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (fileChannel.size() < fileSize) {
+                throw new EOFException(file + " is shorter than " + fileSize + " bytes");
+            }
+            int piecesPerTask = Math.max(1, Math.min(pieceCount, MIN_TASK_BYTES / pieceSize));
+            ForkJoinPool.commonPool().invoke(new HashTask(fileChannel, algorithm, fileSize, pieceSize, hashes, 0, pieceCount, piecesPerTask));
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new PieceHashes(algorithm, fileSize, lastModified, pieceSize, hashes);
+    }
+
+    public static PieceHashes read(File metadataFile) throws IOException {
+        /*
+            This method reads a metadata file written by write().
+         */
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(metadataFile)))) {
+            if (inputStream.readInt() != MAGIC) {
+                throw new IOException(metadataFile + " is not a piece hash file");
+            }
+            String algorithm = inputStream.readUTF();
+            long fileSize = inputStream.readLong();
+            long lastModified = inputStream.readLong();
+            int pieceSize = inputStream.readInt();
+            int hashesLength = inputStream.readInt();
+            // The length is checked before it is allocated, a damaged file must not exhaust the heap
+            if (fileSize < 0 || pieceSize <= 0 || hashesLength != (fileSize + pieceSize - 1) / pieceSize * getDigestLength(algorithm)) {
+                throw new IOException(metadataFile + " is damaged");
+            }
+            byte[] hashes = new byte[hashesLength];
+            inputStream.readFully(hashes);
+            return new PieceHashes(algorithm, fileSize, lastModified, pieceSize, hashes);
+        }
+    }
+
+    private static int getDigestLength(String algorithm) throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm).getDigestLength();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unknown piece hash algorithm " + algorithm, e);
+        }
+    }
+
+    public void write(File metadataFile) throws IOException {
+        /*
+            This method writes the metadata file. It is written to a temporary file
+            first and renamed, so that other peers never read a partial file.
+         */
+        File temporaryFile = new File(metadataFile.getPath() + ".tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeUTF(this.algorithm);
+            outputStream.writeLong(this.fileSize);
+            outputStream.writeLong(this.lastModified);
+            outputStream.writeInt(this.pieceSize);
+            outputStream.writeInt(this.hashes.length);
+            outputStream.write(this.hashes);
+        }
+        Files.move(temporaryFile.toPath(), metadataFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public boolean isGeneratedFrom(File file) {
+        /*
+            Returns true if the file has the size and modification time it had when
+            these hashes were generated from it.
+         */
+        return file.length() == this.fileSize && file.lastModified() == this.lastModified;
+    }
+
+    public boolean matches(int pieceIndex, byte[] pieceDigest) {
+        int offset = pieceIndex * this.digestLength;
+        return pieceDigest.length == this.digestLength
+                && Arrays.equals(this.hashes, offset, offset + this.digestLength, pieceDigest, 0, pieceDigest.length);
+    }
+
+    public String getAlgorithm() {
+        return this.algorithm;
+    }
+
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    public int getPieceSize() {
+        return this.pieceSize;
+    }
+
+    public int getPieceCount() {
+        return this.pieceCount;
+    }
+
+    private static class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private FileChannel fileChannel;
+        private String algorithm;
+        private long fileSize;
+        private int pieceSize;
+        private byte[] hashes;
+        private int firstPiece;
+        private int endPiece;
+        private int piecesPerTask;
+
+        HashTask(FileChannel fileChannel, String algorithm, long fileSize, int pieceSize, byte[] hashes,
+                 int firstPiece, int endPiece, int piecesPerTask) {
+            this.fileChannel = fileChannel;
+            this.algorithm = algorithm;
+            this.fileSize = fileSize;
+            this.pieceSize = pieceSize;
+            this.hashes = hashes;
+            this.firstPiece = firstPiece;
+            this.endPiece = endPiece;
+            this.piecesPerTask = piecesPerTask;
+        }
+
+        protected void compute() {
+            if (this.endPiece - this.firstPiece > this.piecesPerTask) {
+                int middlePiece = (this.firstPiece + this.endPiece) >>> 1;
+                invokeAll(new HashTask(this.fileChannel, this.algorithm, this.fileSize, this.pieceSize, this.hashes, this.firstPiece, middlePiece, this.piecesPerTask),
+                        new HashTask(this.fileChannel, this.algorithm, this.fileSize, this.pieceSize, this.hashes, middlePiece, this.endPiece, this.piecesPerTask));
+                return;
+            }
+            try {
+                MessageDigest digest = MessageDigest.getInstance(this.algorithm);
+                int digestLength = digest.getDigestLength();
+                long start = (long) this.firstPiece * this.pieceSize;
+                long end = Math.min(this.fileSize, (long) this.endPiece * this.pieceSize);
+                MappedByteBuffer region = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                for (int pieceIndex = this.firstPiece; pieceIndex < this.endPiece; pieceIndex++) {
+                    int offset = (pieceIndex - this.firstPiece) * this.pieceSize;
+                    region.limit((int) Math.min(region.capacity(), (long) offset + this.pieceSize)).position(offset);
+                    digest.update(region);
+                    digest.digest(this.hashes, pieceIndex * digestLength, digestLength);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package p2p;
+
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class PiecePicker {
+    private int pieceCount;
+    private AtomicIntegerArray availability;
+
+    public PiecePicker(int pieceCount) {
+        /*
+            This is the constructor for PiecePicker class. It keeps the number of
+            neighbors that have each piece, which is updated incrementally from the
+            bitfield and have messages of the neighbors. The counts are atomic, so
+            the neighbor threads update them without a lock.
+         */
+        this.pieceCount = pieceCount;
+        this.availability = new AtomicIntegerArray(pieceCount);
+    }
+
+    public void addBitfield(BitSet bitSet) {
+        for (int pieceIndex = bitSet.nextSetBit(0); pieceIndex >= 0 && pieceIndex < this.pieceCount; pieceIndex = bitSet.nextSetBit(pieceIndex + 1)) {
+            this.availability.incrementAndGet(pieceIndex);
+        }
+    }
+
+    public void removeBitfield(BitSet bitSet) {
+        for (int pieceIndex = bitSet.nextSetBit(0); pieceIndex >= 0 && pieceIndex < this.pieceCount; pieceIndex = bitSet.nextSetBit(pieceIndex + 1)) {
+            this.availability.decrementAndGet(pieceIndex);
+        }
+    }
+
+    public void addPiece(int pieceIndex) {
+        this.availability.incrementAndGet(pieceIndex);
+    }
+
+    public int pickPiece(BitSet neighborPieces, BitSet localPieces, BitSet excludedPieces) {
+        /*
+            This method returns the rarest piece that the neighbor has, the peer does
+            not have and that is not already being downloaded. Ties between
+            equally rare pieces are broken randomly so that the neighbors do not all
+            chase the same piece.
+
+            The counts can change while the pieces are compared, which only affects
+            the order of the pieces and not the correctness of the choice.
+
+            Returns -1 if there is no such piece.
+         */
+        int selectedPiece = -1;
+        int selectedAvailability = Integer.MAX_VALUE;
+        int tieCount = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int pieceIndex = neighborPieces.nextSetBit(0); pieceIndex >= 0 && pieceIndex < this.pieceCount; pieceIndex = neighborPieces.nextSetBit(pieceIndex + 1)) {
+            if (localPieces.get(pieceIndex) || excludedPieces.get(pieceIndex)) {
+                continue;
+            }
+            int pieceAvailability = this.availability.get(pieceIndex);
+            if (pieceAvailability < selectedAvailability) {
+                selectedPiece = pieceIndex;
+                selectedAvailability = pieceAvailability;
+                tieCount = 1;
+            }
+            else if (pieceAvailability == selectedAvailability) {
+                // Reservoir sampling gives every tied piece the same chance
+                tieCount++;
+                if (random.nextInt(tieCount) == 0) {
+                    selectedPiece = pieceIndex;
+                }
+            }
+        }
+        return selectedPiece;
+    }
+}
@@ -0,0 +1,26 @@
+package p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface PieceStore {
+    /*
+        A PieceStore holds the pieces of the shared file. Implementations allow
+        concurrent reads and writes of different pieces without a global lock.
+        Pieces are assembled in place from blocks received from the neighbors.
+     */
+
+    void writePiece(int pieceIndex, byte[] data) throws IOException;
+
+    byte[] readPiece(int pieceIndex) throws IOException;
+
+    void writeBlock(int pieceIndex, int offset, ByteBuffer data) throws IOException;
+
+    void writePieces(int firstPieceIndex, ByteBuffer data) throws IOException;
+
+    FileRegion getBlockRegion(int pieceIndex, int offset, int length);
+
+    void force() throws IOException;
+
+    void close() throws IOException;
+}
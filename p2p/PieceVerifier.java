@@ -0,0 +1,134 @@
+package p2p;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PieceVerifier {
+    private PieceHashes pieceHashes;
+    private PieceStore pieceStore;
+    private ExecutorService executor;
+    private ThreadLocal<MessageDigest> digests;
+    private AtomicInteger verifiedPieceCount;
+    private AtomicInteger failedPieceCount;
+    private AtomicInteger pendingPieceCount;
+    private AtomicInteger maxPendingPieceCount;
+    private AtomicLong verifiedBytes;
+    private AtomicLong hashingNanos;
+
+    public PieceVerifier(PieceHashes pieceHashes, PieceStore pieceStore, PeerThreadFactory threadFactory, int threadCount) {
+        /*
+            This is the constructor for PieceVerifier class. Completed pieces are
+            read back from the piece store and hashed on a pool of worker threads,
+            so that the socket threads keep receiving blocks meanwhile.
+
+            The time spent hashing and the number of pieces waiting are counted, to
+            tell whether the workers keep up with the download.
+         */
+        this.pieceHashes = pieceHashes;
+        this.pieceStore = pieceStore;
+        this.executor = threadFactory.newFixedExecutor(Math.max(1, threadCount));
+        this.digests = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance(pieceHashes.getAlgorithm());
+            }
+            catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        this.verifiedPieceCount = new AtomicInteger();
+        this.failedPieceCount = new AtomicInteger();
+        this.pendingPieceCount = new AtomicInteger();
+        this.maxPendingPieceCount = new AtomicInteger();
+        this.verifiedBytes = new AtomicLong();
+        this.hashingNanos = new AtomicLong();
+    }
+
+    public void submit(int pieceIndex, Runnable onVerified, Runnable onFailed) {
+        this.submit(pieceIndex, null, onVerified, onFailed);
+    }
+
+    public void submit(int pieceIndex, byte[] data, Runnable onVerified, Runnable onFailed) {
+        /*
+            This method queues a completed piece for verification. Without data, the
+            piece is read back from the piece store. One of the callbacks is run on
+            the worker thread once the piece is hashed. A piece that cannot be read
+            or hashed is handled like a piece that does not match its hash, so that
+            it is requested again.
+         */
+        this.maxPendingPieceCount.accumulateAndGet(this.pendingPieceCount.incrementAndGet(), Math::max);
+        this.executor.execute(() -> {
+            boolean isVerified = false;
+            try {
+                isVerified = data == null ? this.verifyStoredPiece(pieceIndex) : this.verify(pieceIndex, data);
+            }
+            catch (Exception e) {
+                this.failedPieceCount.incrementAndGet();
+                e.printStackTrace();
+            }
+            this.pendingPieceCount.decrementAndGet();
+            try {
+                if (isVerified) {
+                    onVerified.run();
+                }
+                else {
+                    onFailed.run();
+                }
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    public boolean verifyStoredPiece(int pieceIndex) throws IOException {
+        /*
+            This method reads a piece back from the piece store and verifies it on
+            the calling thread.
+         */
+        return this.verify(pieceIndex, this.pieceStore.readPiece(pieceIndex));
+    }
+
+    public boolean verify(int pieceIndex, byte[] data) {
+        /*
+            This method hashes the data of a piece on the calling thread and compares
+            it with the expected hash.
+         */
+        long startNanos = System.nanoTime();
+        MessageDigest digest = this.digests.get();
+        boolean isVerified = this.pieceHashes.matches(pieceIndex, digest.digest(data));
+        this.hashingNanos.addAndGet(System.nanoTime() - startNanos);
+        this.verifiedBytes.addAndGet(data.length);
+        if (isVerified) {
+            this.verifiedPieceCount.incrementAndGet();
+        }
+        else {
+            this.failedPieceCount.incrementAndGet();
+        }
+        return isVerified;
+    }
+
+    public double getThroughput() {
+        /*
+            Returns the hashing throughput of a single worker in bytes per second.
+         */
+        long nanos = this.hashingNanos.get();
+        return nanos == 0 ? 0 : this.verifiedBytes.get() * 1e9 / nanos;
+    }
+
+    public String getSummary() {
+        return String.format("%d pieces verified, %d failed, %.1f MB/s per worker, at most %d pieces waiting",
+                this.verifiedPieceCount.get(), this.failedPieceCount.get(), this.getThroughput() / (1 << 20),
+                this.maxPendingPieceCount.get());
+    }
+
+    public void destroyVerifier() {
+        /*
+            A running verification is not interrupted, as that would close the file
+            channel of the piece store it is reading from.
+         */
+        this.executor.shutdown();
+    }
+}
@@ -4,16 +4,12 @@ import java.util.*;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.lang.*;
-import java.util.concurrent.Executors;
-
-import static java.util.stream.Collectors.*;
 import java.util.concurrent.TimeUnit;
 
 public class PreferredNeighborScheduler implements Runnable {
     private int interval;
     private int preferredNeighboursCount;
     private PeerAdmin peerAdmin;
-    private Random rand = new Random();
     private ScheduledFuture<?> scheduledJob = null;
     private ScheduledExecutorService scheduler = null;
 
@@ -21,7 +17,7 @@ public class PreferredNeighborScheduler implements Runnable {
         this.peerAdmin = padmin;
         this.interval = padmin.getUnchokingInterval();
         this.preferredNeighboursCount = padmin.getNumberOfPreferredNeighbors();
-        this.scheduler = Executors.newScheduledThreadPool(1);
+        this.scheduler = padmin.getThreadFactory().newScheduledExecutor();
     }
 
     public void initializeScheduler() {
@@ -30,61 +26,37 @@ public class PreferredNeighborScheduler implements Runnable {
 
     public void run() {
         try {
+            this.peerAdmin.sampleTransferRates();
             HashSet<String> unchokedPeerSet = new HashSet<>(this.peerAdmin.getUnchokedPeerSet());
             HashSet<String> newUnchokedPeerSet = new HashSet<>();
+            List<PeerUtils> newlyUnchokedPeers = new ArrayList<>();
             List<String> interestedPeerList = new ArrayList<String>(this.peerAdmin.getInterestedPeerSet());
             // If peers are present in the interestedPeerList
             if (interestedPeerList.size() > 0) {
                 int minNeighborCount = Math.min(this.preferredNeighboursCount, interestedPeerList.size());
-                if (this.peerAdmin.getCompletedPieceCount() == this.peerAdmin.getPieceCount()) {
-                    for (int index = 0; index < minNeighborCount; index++) {
-                        String nextInterestedPeer = interestedPeerList.get(this.rand.nextInt(interestedPeerList.size()));
-                        PeerUtils nextPeer = this.peerAdmin.getConnectedPeers(nextInterestedPeer);
-                        while (newUnchokedPeerSet.contains(nextInterestedPeer)) {
-                            nextInterestedPeer = interestedPeerList.get(this.rand.nextInt(interestedPeerList.size()));
-                            nextPeer = this.peerAdmin.getConnectedPeers(nextInterestedPeer);
-                        }
-                        if (!unchokedPeerSet.contains(nextInterestedPeer)) {
-                            if (this.peerAdmin.getOptimisticUnchokedPeer() == null
-                                    || this.peerAdmin.getOptimisticUnchokedPeer().compareTo(nextInterestedPeer) != 0) {
-                                nextPeer.sendUnChokeMessage();
-                            }
-                        } 
-                        else {
-                            unchokedPeerSet.remove(nextInterestedPeer);
-                        }
-                        newUnchokedPeerSet.add(nextInterestedPeer);
-                        nextPeer.resetDownloadRate();
+                List<String> preferredPeers = this.peerAdmin.getChokingStrategy()
+                                                     .selectPreferredNeighbors(this.peerAdmin, interestedPeerList, minNeighborCount);
+                for (String nextPreferredPeer : preferredPeers) {
+                    PeerUtils nextPeer = this.peerAdmin.getConnectedPeers(nextPreferredPeer);
+                    if (nextPeer == null) {
+                        continue;
                     }
-                } else {
-                    Map<String, Integer> downloadRates = new HashMap<>(this.peerAdmin.getDownloadRatesOfPeers());
-                    Map<String, Integer> rates = downloadRates.entrySet().stream()
-                                                              .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
-                                                              .collect(toMap(Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1, LinkedHashMap::new));
-
-                    Iterator<Map.Entry<String, Integer>> iterator = rates.entrySet().iterator();
-                    int counter = 0;
-                    while (counter < minNeighborCount && iterator.hasNext()) {
-
-                        Map.Entry<String, Integer> nextDownloadRate = iterator.next();
-                        if (interestedPeerList.contains(nextDownloadRate.getKey())) {
-                            PeerUtils nextHandler = this.peerAdmin.getConnectedPeers(nextDownloadRate.getKey());
-                            if (!unchokedPeerSet.contains(nextDownloadRate.getKey())) {
-                                String optimisticUnchokedPeer = this.peerAdmin.getOptimisticUnchokedPeer();
-                                if (optimisticUnchokedPeer == null || optimisticUnchokedPeer.compareTo(nextDownloadRate.getKey()) != 0) {
-                                    nextHandler.sendUnChokeMessage();
-                                }
-                            } 
-                            else {
-                                unchokedPeerSet.remove(nextDownloadRate.getKey());
-                            }
-                            newUnchokedPeerSet.add(nextDownloadRate.getKey());
-                            nextHandler.resetDownloadRate();
-                            counter++;
+                    if (!unchokedPeerSet.contains(nextPreferredPeer)) {
+                        String optimisticUnchokedPeer = this.peerAdmin.getOptimisticUnchokedPeer();
+                        if (optimisticUnchokedPeer == null || optimisticUnchokedPeer.compareTo(nextPreferredPeer) != 0) {
+                            newlyUnchokedPeers.add(nextPeer);
                         }
                     }
+                    else {
+                        unchokedPeerSet.remove(nextPreferredPeer);
+                    }
+                    newUnchokedPeerSet.add(nextPreferredPeer);
                 }
+                // Update the unchoked set before unchoking so that their requests are accepted
                 this.peerAdmin.updateUnchokedPeerSet(newUnchokedPeerSet);
+                for (PeerUtils peer : newlyUnchokedPeers) {
+                    peer.sendUnChokeMessage();
+                }
                 if(newUnchokedPeerSet.size() > 0){
                     this.peerAdmin.getLogger().preferredNeighborsChanged(new ArrayList<>(newUnchokedPeerSet));
                 }
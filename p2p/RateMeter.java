@@ -0,0 +1,59 @@
+package p2p;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class RateMeter {
+    private LongAdder pendingBytes;
+    private LongAdder totalBytes;
+    private double timeConstantNanos;
+    private long lastSampleNanos;
+    private volatile double rate;
+
+    public RateMeter(double timeConstantSeconds) {
+        /*
+            This is the constructor for RateMeter class. It measures a transfer rate
+            in bytes per second as an exponentially weighted moving average. Bytes
+            are recorded without a lock from the receive or send path, and are
+            folded into the average when the meter is sampled, which is done once per
+            unchoking interval.
+
+            The weight of a sample depends on the time since the previous sample, so
+            that irregular sampling intervals are handled correctly.
+         */
+        this.pendingBytes = new LongAdder();
+        this.totalBytes = new LongAdder();
+        this.timeConstantNanos = Math.max(1e-3, timeConstantSeconds) * 1e9;
+        this.lastSampleNanos = System.nanoTime();
+        this.rate = 0;
+    }
+
+    public void record(long bytes) {
+        this.pendingBytes.add(bytes);
+        this.totalBytes.add(bytes);
+    }
+
+    public synchronized double sample() {
+        /*
+            This method folds the bytes recorded since the previous sample into the
+            average and returns the new rate.
+         */
+        long now = System.nanoTime();
+        long elapsedNanos = now - this.lastSampleNanos;
+        if (elapsedNanos <= 0) {
+            return this.rate;
+        }
+        this.lastSampleNanos = now;
+        double currentRate = this.pendingBytes.sumThenReset() * 1e9 / elapsedNanos;
+        double weight = 1 - Math.exp(-elapsedNanos / this.timeConstantNanos);
+        this.rate = this.rate + weight * (currentRate - this.rate);
+        return this.rate;
+    }
+
+    public double getRate() {
+        return this.rate;
+    }
+
+    public long getTotalBytes() {
+        return this.totalBytes.sum();
+    }
+}
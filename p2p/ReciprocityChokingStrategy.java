@@ -0,0 +1,26 @@
+package p2p;
+
+import java.util.*;
+
+public class ReciprocityChokingStrategy extends DefaultChokingStrategy {
+
+    protected List<String> selectAsLeecher(PeerAdmin peerAdmin, List<String> interestedPeers, int count) {
+        /*
+            This method ranks the neighbors by their download rate, weighed by the
+            ratio of the bytes received from them to the bytes uploaded to them.
+            A neighbor that has taken much more than it has given is ranked lower
+            than an equally fast neighbor that reciprocates. One piece of credit
+            is given to every neighbor, so that new neighbors are not penalized.
+         */
+        double credit = peerAdmin.getPieceSize();
+        Map<String, Double> scores = new HashMap<>();
+        for (String peerID : interestedPeers) {
+            PeerUtils peerUtils = peerAdmin.getConnectedPeers(peerID);
+            if (peerUtils != null) {
+                double ratio = (peerUtils.getDownloadedBytes() + credit) / (peerUtils.getUploadedBytes() + credit);
+                scores.put(peerID, peerUtils.getDownloadRate() * Math.min(1.0, ratio));
+            }
+        }
+        return selectHighestScores(scores, count);
+    }
+}
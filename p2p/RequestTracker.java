@@ -0,0 +1,286 @@
+package p2p;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+public class RequestTracker {
+    private int pieceCount;
+    private int pieceSize;
+    private long fileSize;
+    private int blockSize;
+    private PiecePicker piecePicker;
+    private HashMap<Integer, PartialPiece> partialPieces;
+    private BitSet pickedPieceSet;
+
+    public RequestTracker(int pieceCount, int pieceSize, long fileSize, int blockSize, PiecePicker piecePicker) {
+        /*
+            This is the constructor for RequestTracker class. It keeps the pieces that
+            are being downloaded, which blocks of them are received and from which
+            neighbor every outstanding block is requested.
+
+            A piece that was picked is not picked again once it completes, unless it
+            is released because it failed verification. The bitfields passed in can
+            therefore be snapshots taken outside this monitor: a piece that completed
+            after the snapshot of the local bitfield is still not picked.
+         */
+        this.pieceCount = pieceCount;
+        this.pieceSize = pieceSize;
+        this.fileSize = fileSize;
+        this.blockSize = Math.min(blockSize, pieceSize);
+        this.piecePicker = piecePicker;
+        this.partialPieces = new HashMap<>();
+        this.pickedPieceSet = new BitSet(pieceCount);
+    }
+
+    public BlockRequest nextRequest(String neighborPeerID, BitSet neighborPieces, BitSet localPieces, boolean isEndgame) {
+        /*
+            This method returns the next block to request from the neighbor. Blocks of
+            pieces that are already being downloaded are preferred, so that several
+            neighbors can contribute to the same piece. Otherwise the rarest new piece
+            is started.
+
+            In the endgame, when every remaining block is already requested, a block
+            that is outstanding at another neighbor is requested again, so that the
+            last pieces do not wait on a slow neighbor.
+
+            The rarest piece is searched without holding the monitor, as the search
+            scans every piece, and is then started only if no other neighbor has
+            picked it meanwhile. The bitfields must not change during the call.
+
+            Returns null if there is nothing to request from the neighbor.
+         */
+        while (true) {
+            BitSet pickedPieces;
+            synchronized (this) {
+                for (PartialPiece partialPiece : this.partialPieces.values()) {
+                    if (neighborPieces.get(partialPiece.pieceIndex)) {
+                        BlockRequest request = partialPiece.assignBlock(neighborPeerID);
+                        if (request != null) {
+                            return request;
+                        }
+                    }
+                }
+                pickedPieces = (BitSet) this.pickedPieceSet.clone();
+            }
+
+            int pieceIndex = this.piecePicker.pickPiece(neighborPieces, localPieces, pickedPieces);
+            synchronized (this) {
+                if (pieceIndex == -1) {
+                    return isEndgame ? this.nextDuplicateRequest(neighborPeerID, neighborPieces) : null;
+                }
+                // A piece picked by another neighbor meanwhile is shared on the next pass
+                if (this.pickedPieceSet.get(pieceIndex)) {
+                    continue;
+                }
+                PartialPiece partialPiece = new PartialPiece(pieceIndex);
+                this.partialPieces.put(pieceIndex, partialPiece);
+                this.pickedPieceSet.set(pieceIndex);
+                return partialPiece.assignBlock(neighborPeerID);
+            }
+        }
+    }
+
+    private BlockRequest nextDuplicateRequest(String neighborPeerID, BitSet neighborPieces) {
+        for (PartialPiece partialPiece : this.partialPieces.values()) {
+            if (neighborPieces.get(partialPiece.pieceIndex)) {
+                BlockRequest request = partialPiece.assignDuplicateBlock(neighborPeerID);
+                if (request != null) {
+                    return request;
+                }
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<String> takeOtherRequests(int pieceIndex, int offset, String neighborPeerID) {
+        /*
+            This method removes the requests of a block from every neighbor other than
+            the one it was received from. These requests are only made in the endgame.
+
+            Returns the neighbors whose requests should be cancelled.
+         */
+        List<String> otherRequests = new ArrayList<>();
+        PartialPiece partialPiece = this.partialPieces.get(pieceIndex);
+        if (partialPiece != null && offset % this.blockSize == 0) {
+            partialPiece.takeOtherRequests(offset / this.blockSize, neighborPeerID, otherRequests);
+        }
+        return otherRequests;
+    }
+
+    public synchronized boolean isBlockRequested(String neighborPeerID, int pieceIndex, int offset, int length) {
+        /*
+            Returns true if the block is requested from the neighbor, with this
+            length, and has not been received yet.
+         */
+        PartialPiece partialPiece = this.partialPieces.get(pieceIndex);
+        return partialPiece != null && offset >= 0 && offset % this.blockSize == 0
+                && partialPiece.isRequested(offset / this.blockSize, length, neighborPeerID);
+    }
+
+    public synchronized boolean blockReceived(int pieceIndex, int offset, int length) {
+        /*
+            This method marks a block as received. Only a whole block counts, a block
+            shorter than requested would leave a gap in the piece. A completed piece
+            is not picked again unless it is released.
+
+            Returns true if this block completes the piece.
+         */
+        PartialPiece partialPiece = this.partialPieces.get(pieceIndex);
+        if (partialPiece == null || offset < 0 || offset % this.blockSize != 0
+                || !partialPiece.receiveBlock(offset / this.blockSize, length)) {
+            return false;
+        }
+        if (partialPiece.isComplete()) {
+            this.partialPieces.remove(pieceIndex);
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void releasePiece(int pieceIndex) {
+        /*
+            This method releases a completed piece that failed verification, so that
+            it is picked and downloaded again.
+         */
+        if (!this.partialPieces.containsKey(pieceIndex)) {
+            this.pickedPieceSet.clear(pieceIndex);
+        }
+    }
+
+    public synchronized void releaseRequests(String neighborPeerID) {
+        /*
+            This method releases the blocks requested from the neighbor, so that they
+            can be requested from other neighbors.
+         */
+        for (PartialPiece partialPiece : this.partialPieces.values()) {
+            partialPiece.releaseBlocks(neighborPeerID);
+        }
+    }
+
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    private int getPieceLength(int pieceIndex) {
+        if (pieceIndex == this.pieceCount - 1) {
+            return (int) (this.fileSize - (long) this.pieceSize * pieceIndex);
+        }
+        return this.pieceSize;
+    }
+
+    private class PartialPiece {
+        private int pieceIndex;
+        private int pieceLength;
+        private String[] requestedBlocks;
+        private HashMap<Integer, Set<String>> duplicateRequests;
+        private BitSet receivedBlocks;
+
+        PartialPiece(int pieceIndex) {
+            this.pieceIndex = pieceIndex;
+            this.pieceLength = getPieceLength(pieceIndex);
+            this.requestedBlocks = new String[(this.pieceLength + blockSize - 1) / blockSize];
+            this.duplicateRequests = new HashMap<>();
+            this.receivedBlocks = new BitSet(this.requestedBlocks.length);
+        }
+
+        BlockRequest assignBlock(String neighborPeerID) {
+            int block = this.receivedBlocks.nextClearBit(0);
+            while (block < this.requestedBlocks.length && this.requestedBlocks[block] != null) {
+                block = this.receivedBlocks.nextClearBit(block + 1);
+            }
+            if (block >= this.requestedBlocks.length) {
+                return null;
+            }
+            this.requestedBlocks[block] = neighborPeerID;
+            return this.createRequest(block);
+        }
+
+        BlockRequest assignDuplicateBlock(String neighborPeerID) {
+            for (int block = this.receivedBlocks.nextClearBit(0); block < this.requestedBlocks.length; block = this.receivedBlocks.nextClearBit(block + 1)) {
+                if (this.requestedBlocks[block] == null) {
+                    this.requestedBlocks[block] = neighborPeerID;
+                    return this.createRequest(block);
+                }
+                if (neighborPeerID.equals(this.requestedBlocks[block])) {
+                    continue;
+                }
+                if (this.duplicateRequests.computeIfAbsent(block, key -> new HashSet<>()).add(neighborPeerID)) {
+                    return this.createRequest(block);
+                }
+            }
+            return null;
+        }
+
+        void takeOtherRequests(int block, String neighborPeerID, List<String> otherRequests) {
+            if (block >= this.requestedBlocks.length || this.receivedBlocks.get(block)) {
+                return;
+            }
+            Set<String> duplicates = this.duplicateRequests.remove(block);
+            if (duplicates == null) {
+                return;
+            }
+            if (this.requestedBlocks[block] != null && !neighborPeerID.equals(this.requestedBlocks[block])) {
+                otherRequests.add(this.requestedBlocks[block]);
+            }
+            duplicates.remove(neighborPeerID);
+            otherRequests.addAll(duplicates);
+            this.requestedBlocks[block] = neighborPeerID;
+        }
+
+        private BlockRequest createRequest(int block) {
+            return new BlockRequest(this.pieceIndex, block * blockSize, this.getBlockLength(block));
+        }
+
+        private int getBlockLength(int block) {
+            return Math.min(blockSize, this.pieceLength - block * blockSize);
+        }
+
+        boolean isRequested(int block, int length, String neighborPeerID) {
+            if (block >= this.requestedBlocks.length || this.receivedBlocks.get(block) || length != this.getBlockLength(block)) {
+                return false;
+            }
+            Set<String> duplicates = this.duplicateRequests.get(block);
+            return neighborPeerID.equals(this.requestedBlocks[block]) || duplicates != null && duplicates.contains(neighborPeerID);
+        }
+
+        boolean receiveBlock(int block, int length) {
+            if (block >= this.requestedBlocks.length || this.receivedBlocks.get(block) || length != this.getBlockLength(block)) {
+                return false;
+            }
+            this.receivedBlocks.set(block);
+            this.requestedBlocks[block] = null;
+            this.duplicateRequests.remove(block);
+            return true;
+        }
+
+        void releaseBlocks(String neighborPeerID) {
+            for (int block = 0; block < this.requestedBlocks.length; block++) {
+                Set<String> duplicates = this.duplicateRequests.get(block);
+                if (duplicates != null) {
+                    duplicates.remove(neighborPeerID);
+                }
+                if (neighborPeerID.equals(this.requestedBlocks[block])) {
+                    // A duplicate request of the endgame takes over the block
+                    this.requestedBlocks[block] = null;
+                    if (duplicates != null && !duplicates.isEmpty()) {
+                        Iterator<String> iterator = duplicates.iterator();
+                        this.requestedBlocks[block] = iterator.next();
+                        iterator.remove();
+                    }
+                }
+                if (duplicates != null && duplicates.isEmpty()) {
+                    this.duplicateRequests.remove(block);
+                }
+            }
+        }
+
+        boolean isComplete() {
+            return this.receivedBlocks.cardinality() == this.requestedBlocks.length;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package p2p;
+
+import java.util.*;
+
+public class SeedChokingStrategy extends DefaultChokingStrategy {
+
+    protected List<String> selectAsSeed(PeerAdmin peerAdmin, List<String> interestedPeers, int count) {
+        /*
+            This method unchokes the neighbors that the peer uploads to fastest
+            once it has the complete file, so that the pieces leave the seed at
+            the highest rate and spread through the swarm sooner.
+         */
+        return selectHighestScores(selectInterested(peerAdmin.getUploadRatesOfPeers(), interestedPeers), count);
+    }
+}
@@ -4,7 +4,6 @@ import java.util.*;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.lang.*;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class TerminationScheduler implements Runnable {
@@ -16,7 +15,7 @@ public class TerminationScheduler implements Runnable {
 
     TerminationScheduler(PeerAdmin padmin) {
         this.peerAdmin = padmin;
-        this.scheduler = Executors.newScheduledThreadPool(1);
+        this.scheduler = padmin.getThreadFactory().newScheduledExecutor();
     }
 
     public void initializeScheduler(int timeInterval) {
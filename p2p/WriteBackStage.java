@@ -0,0 +1,183 @@
+package p2p;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class WriteBackStage implements Runnable {
+    private static final int MAX_WRITE_BYTES = 4 << 20;
+    private static final long POLL_MILLIS = 100;
+
+    private PieceStore pieceStore;
+    private int pieceSize;
+    private String forcePolicy;
+    private long forceIntervalNanos;
+    private LinkedBlockingQueue<PieceWrite> pendingWrites;
+    private ByteBuffer writeBuffer;
+    private volatile Thread writerThread;
+    private volatile boolean isClosed = false;
+    private final Object forceLock = new Object();
+    private BitSet unforcedPieces;
+    private long lastForceNanos;
+    private long writeCount = 0;
+    private long writtenPieceCount = 0;
+    private long forceCount = 0;
+
+    public WriteBackStage(PieceStore pieceStore, int pieceSize, int pieceCount, String forcePolicy, int forceInterval) {
+        /*
+            This is the constructor for WriteBackStage class. Completed pieces are
+            queued and written by a single writer thread. The writer takes all the
+            queued pieces at once, sorts them and writes runs of adjacent pieces with
+            a single write, so that the disk sees few large sequential writes.
+
+            The force policy decides when the written pieces are forced to disk:
+            never (only when the checkpoint or the peer asks for it), after every
+            batch of writes, or once per force interval in milliseconds.
+         */
+        this.pieceStore = pieceStore;
+        this.pieceSize = pieceSize;
+        this.forcePolicy = forcePolicy;
+        this.forceIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, forceInterval));
+        this.pendingWrites = new LinkedBlockingQueue<>();
+        this.writeBuffer = ByteBuffer.allocateDirect(Math.max(MAX_WRITE_BYTES, pieceSize));
+        this.unforcedPieces = new BitSet(pieceCount);
+        this.lastForceNanos = System.nanoTime();
+    }
+
+    public void initializeWriter(PeerThreadFactory threadFactory) {
+        this.writerThread = threadFactory.newThread(this);
+        this.writerThread.start();
+    }
+
+    public void submit(int pieceIndex, byte[] data, Runnable onWritten) {
+        /*
+            This method queues a completed piece. The callback is run on the writer
+            thread once the piece is written, and forced if the policy is batch.
+         */
+        this.pendingWrites.add(new PieceWrite(pieceIndex, data, onWritten));
+    }
+
+    public void run() {
+        List<PieceWrite> batch = new ArrayList<>();
+        while (!this.isClosed || !this.pendingWrites.isEmpty()) {
+            try {
+                PieceWrite pieceWrite = this.pendingWrites.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (pieceWrite != null) {
+                    batch.add(pieceWrite);
+                    this.pendingWrites.drainTo(batch);
+                    this.writeBatch(batch);
+                }
+                if ("batch".equalsIgnoreCase(this.forcePolicy) && !batch.isEmpty()
+                        || "interval".equalsIgnoreCase(this.forcePolicy) && System.nanoTime() - this.lastForceNanos >= this.forceIntervalNanos) {
+                    this.force();
+                }
+                for (PieceWrite writtenPiece : batch) {
+                    writtenPiece.onWritten.run();
+                }
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<PieceWrite> batch) throws Exception {
+        /*
+            This method writes the batch in order of the pieces. Adjacent pieces are
+            copied into the write buffer and written together, up to the size of
+            the buffer.
+         */
+        batch.sort(Comparator.comparingInt(pieceWrite -> pieceWrite.pieceIndex));
+        int runStart = 0;
+        while (runStart < batch.size()) {
+            int runEnd = runStart + 1;
+            long runBytes = batch.get(runStart).data.length;
+            while (runEnd < batch.size() && batch.get(runEnd).pieceIndex == batch.get(runEnd - 1).pieceIndex + 1
+                    && batch.get(runEnd - 1).data.length == this.pieceSize
+                    && runBytes + batch.get(runEnd).data.length <= this.writeBuffer.capacity()) {
+                runBytes += batch.get(runEnd).data.length;
+                runEnd++;
+            }
+            this.writeBuffer.clear();
+            for (int index = runStart; index < runEnd; index++) {
+                this.writeBuffer.put(batch.get(index).data);
+            }
+            this.writeBuffer.flip();
+            this.pieceStore.writePieces(batch.get(runStart).pieceIndex, this.writeBuffer);
+            synchronized (this.forceLock) {
+                for (int index = runStart; index < runEnd; index++) {
+                    this.unforcedPieces.set(batch.get(index).pieceIndex);
+                }
+            }
+            this.writeCount++;
+            this.writtenPieceCount += runEnd - runStart;
+            runStart = runEnd;
+        }
+    }
+
+    public void force() throws Exception {
+        /*
+            This method forces the written pieces to disk. Pieces written while the
+            store is being forced stay unforced until the next force.
+         */
+        BitSet writtenPieces;
+        synchronized (this.forceLock) {
+            writtenPieces = (BitSet) this.unforcedPieces.clone();
+        }
+        this.pieceStore.force();
+        synchronized (this.forceLock) {
+            this.unforcedPieces.andNot(writtenPieces);
+            this.forceCount++;
+        }
+        this.lastForceNanos = System.nanoTime();
+    }
+
+    public BitSet getUnforcedPieces() {
+        synchronized (this.forceLock) {
+            return (BitSet) this.unforcedPieces.clone();
+        }
+    }
+
+    public String getSummary() {
+        return String.format("%d pieces written back in %d writes, %d forces", this.writtenPieceCount, this.writeCount, this.forceCount);
+    }
+
+    public void destroyStage() {
+        /*
+            This method writes the queued pieces, stops the writer and forces the
+            store. It must be called before the piece store is closed, and not from
+            the writer thread or while holding a lock that a callback may take.
+         */
+        this.isClosed = true;
+        try {
+            Thread writer = this.writerThread;
+            if (writer != null && writer != Thread.currentThread()) {
+                writer.join();
+            }
+            this.force();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class PieceWrite {
+        private int pieceIndex;
+        private byte[] data;
+        private Runnable onWritten;
+
+        PieceWrite(int pieceIndex, byte[] data, Runnable onWritten) {
+            this.pieceIndex = pieceIndex;
+            this.data = data;
+            this.onWritten = onWritten;
+        }
+    }
+}